@@ -42,6 +42,7 @@ echo Generating runtime image...
   --add-modules "$DETECTED_MODULES,$MANUAL_MODULES" \
   --ignore-signing-information \
   --include-locales=en,de \
+  --generate-cds-archive \
   --output target/runtime-image
 
 
@@ -56,8 +57,21 @@ echo Packaging...
   --vendor "Maximilian Herczegh" \
   --icon "src/main/resources/me/maxih/itunes_backup_explorer/icon.icns" \
   --runtime-image "target/runtime-image" \
+  --java-options '-XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=$APPDIR/app-cds.jsa' \
   --module "$MAIN_MODULE/$MAIN_CLASS"
 
+
+echo Training class data sharing archive...
+
+# The launcher creates the archive of the classes loaded at startup when it exits the first time.
+# The installed program then maps these classes instead of loading them again.
+"target/app-image/$APP_NAME.app/Contents/MacOS/$APP_NAME" --exit-after-startup
+
+if [ ! -f "target/app-image/$APP_NAME.app/Contents/app/app-cds.jsa" ]; then
+  echo "Warning: The class data sharing archive could not be created, the program will start without it"
+fi
+
+
 "$JAVA_HOME"/bin/jpackage \
     --dest "target/installer" \
     --name "$APP_NAME" \
@@ -47,6 +47,7 @@ CALL "%JAVA_HOME%\bin\jlink" ^
     --add-modules "%DETECTED_MODULES%,%MANUAL_MODULES%" ^
     --ignore-signing-information ^
     --include-locales=en,de ^
+    --generate-cds-archive ^
     --output target/runtime-image
 
 
@@ -61,8 +62,19 @@ CALL "%JAVA_HOME%\bin\jpackage" ^
     --vendor "Maximilian Herczegh" ^
     --icon "src\main\resources\me\maxih\itunes_backup_explorer\icon.ico" ^
     --runtime-image "target\runtime-image" ^
+    --java-options "-XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=$APPDIR\app-cds.jsa" ^
     --module "%MAIN_MODULE%/%MAIN_CLASS%"
 
+
+echo Training class data sharing archive...
+
+REM The launcher creates the archive of the classes loaded at startup when it exits the first time.
+REM The installed program then maps these classes instead of loading them again.
+START "" /WAIT "target\app-image\%APP_NAME%\%APP_NAME%.exe" --exit-after-startup
+
+IF NOT EXIST "target\app-image\%APP_NAME%\app\app-cds.jsa" echo Warning: The class data sharing archive could not be created, the program will start without it
+
+
 CALL "%JAVA_HOME%\bin\jpackage" ^
     --type msi ^
     --dest "target\installer" ^
@@ -1,6 +1,7 @@
 package me.maxih.itunes_backup_explorer;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -9,9 +10,17 @@ import javafx.stage.Stage;
 import me.maxih.itunes_backup_explorer.ui.WindowController;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Objects;
 
 public class ITunesBackupExplorer extends Application {
+    /**
+     * Closes the program as soon as the window is shown and prints how long that took.
+     * Used by the packaging scripts for the class data sharing training run.
+     */
+    public static final String EXIT_AFTER_STARTUP = "--exit-after-startup";
+
     Scene scene;
     WindowController controller;
 
@@ -27,6 +36,15 @@ public class ITunesBackupExplorer extends Application {
         stage.setMinWidth(500);
         stage.setMinHeight(300);
         stage.getIcons().add(getIcon("icon.png"));
+
+        if (getParameters().getRaw().contains(EXIT_AFTER_STARTUP)) {
+            stage.setOnShown(event -> {
+                ProcessHandle.current().info().startInstant().ifPresent(startTime ->
+                        System.out.println("Window shown after " + Duration.between(startTime, Instant.now()).toMillis() + " ms"));
+                Platform.runLater(Platform::exit);
+            });
+        }
+
         stage.show();
     }
 
@@ -36,7 +54,7 @@ public class ITunesBackupExplorer extends Application {
     }
 
     public static void main(String[] args) {
-        launch();
+        launch(args);
     }
 
     public static Image getIcon(String name) {
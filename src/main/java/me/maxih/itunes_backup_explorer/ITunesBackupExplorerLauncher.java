@@ -1,8 +1,12 @@
 package me.maxih.itunes_backup_explorer;
 
+import me.maxih.itunes_backup_explorer.cli.CommandLine;
+
 // Needed to provide a multi-platform jar
 public class ITunesBackupExplorerLauncher {
 	public static void main(String[] args) {
+		// Commands run without the window, so JavaFX is never started
+		if (CommandLine.isCommand(args)) System.exit(CommandLine.run(args));
 		ITunesBackupExplorer.main(args);
 	}
 }
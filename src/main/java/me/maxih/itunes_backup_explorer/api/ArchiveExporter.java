@@ -0,0 +1,277 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import me.maxih.itunes_backup_explorer.util.ArchiveWriter;
+import me.maxih.itunes_backup_explorer.util.BackupPathUtils;
+import me.maxih.itunes_backup_explorer.util.TarArchiveWriter;
+import me.maxih.itunes_backup_explorer.util.ZipArchiveWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exports backup files into a single ZIP or TAR archive, without writing any temporary files.
+ * Small files are read, decrypted and compressed on a pool of threads while earlier entries are written,
+ * larger files are streamed into the archive one at a time. Entries are written in the order of their paths.
+ * An exporter can only be used once.
+ */
+public class ArchiveExporter {
+    /**
+     * Files up to this size are prepared in memory on the pool, larger ones are streamed
+     */
+    public static final int MAX_PREPARED_SIZE = 4 * 1024 * 1024;
+
+    // Formats which are compressed already, so deflating them would only cost time
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "heic", "heif", "png", "gif", "webp",
+            "mov", "mp4", "m4v", "3gp", "m4a", "mp3", "aac", "caf",
+            "zip", "gz", "bz2", "xz", "7z", "ipa", "pdf"
+    );
+
+    private final int threads;
+
+    private FileExtractor.ProgressListener progressListener = (filesDone, filesTotal, bytesDone, bytesTotal) -> {
+    };
+    private FileExtractor.ErrorHandler errorHandler = (file, exception) -> {
+        exception.printStackTrace();
+        return FileExtractor.Decision.CONTINUE;
+    };
+
+    private volatile boolean cancelled = false;
+    private boolean started = false;
+    private ExecutorService pool;
+
+    private long filesDone = 0;
+    private long bytesDone = 0;
+    private long skipped = 0;
+    private long failed = 0;
+
+    public ArchiveExporter() {
+        this(FileExtractor.DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads Number of threads for reading, decrypting and compressing small files
+     */
+    public ArchiveExporter(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("At least one thread is needed");
+        this.threads = threads;
+    }
+
+    /**
+     * The listener is called from the exporting thread after each written file.
+     */
+    public ArchiveExporter setProgressListener(FileExtractor.ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * The handler is called from the exporting thread. The file is left out of the archive.
+     */
+    public ArchiveExporter setErrorHandler(FileExtractor.ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+        return this;
+    }
+
+    /**
+     * Writes the given files into a new archive and waits until it is complete.
+     * If the export is cancelled, the files written so far still make up a valid archive.
+     *
+     * @param files   The files to export. Symbolic links are skipped.
+     * @param archive The archive file, which is overwritten if it exists
+     * @throws IOException          if the archive could not be created or completed
+     * @throws InterruptedException if the calling thread was interrupted, which cancels the export
+     */
+    public FileExtractor.Result export(Collection<BackupFile> files, File archive, Format format) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (this.started) throw new IllegalStateException("Exporter was already used");
+            this.started = true;
+        }
+
+        List<BackupFile> sortedFiles = new ArrayList<>(files);
+        sortedFiles.sort(Comparator.comparing((BackupFile file) -> file.domain).thenComparing(file -> file.relativePath));
+
+        long filesTotal = 0;
+        long bytesTotal = 0;
+        for (BackupFile file : sortedFiles) {
+            if (file.getFileType() != BackupFile.FileType.FILE) continue;
+            filesTotal++;
+            bytesTotal += file.getSize();
+        }
+
+        // Files without a modification time get the time of the export
+        long now = System.currentTimeMillis() / 1000;
+
+        this.pool = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "archive-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (ArchiveWriter writer = format.open(archive)) {
+            // Entries are queued in archive order, so a slow file only holds up the writer, not the pool
+            Queue<Entry> queue = new ArrayDeque<>();
+
+            for (BackupFile file : sortedFiles) {
+                if (this.cancelled) break;
+
+                if (file.getFileType() == BackupFile.FileType.SYMBOLIC_LINK) {
+                    System.out.println("Skipping symbolic link '" + file.domain + ":" + file.relativePath + "'");
+                    this.skipped++;
+                    continue;
+                }
+
+                Entry entry = new Entry(file, file.relativePath.isEmpty() ? file.domain : file.domain + "/" + file.relativePath,
+                        file.getLastModified() != null ? file.getLastModified() : now,
+                        format == Format.ZIP && !COMPRESSED_EXTENSIONS.contains(BackupPathUtils.getFileExtension(file.relativePath).toLowerCase()));
+
+                if (file.getFileType() == BackupFile.FileType.FILE && file.getSize() <= MAX_PREPARED_SIZE) {
+                    try {
+                        entry.prepared = this.pool.submit(() -> {
+                            try (InputStream content = file.openContent()) {
+                                byte[] data = content.readAllBytes();
+                                return writer.prepare(data, data.length, entry.compress);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // Cancelled in the meantime
+                        break;
+                    }
+                }
+
+                queue.add(entry);
+                if (queue.size() >= 2 * this.threads) this.write(writer, queue.remove(), filesTotal, bytesTotal);
+            }
+
+            while (!queue.isEmpty() && !this.cancelled) {
+                this.write(writer, queue.remove(), filesTotal, bytesTotal);
+            }
+
+            writer.finish();
+        } catch (InterruptedException e) {
+            this.cancel();
+            throw e;
+        } finally {
+            this.pool.shutdownNow();
+        }
+
+        return new FileExtractor.Result(this.filesDone, 0, this.skipped, this.failed, this.bytesDone, this.cancelled, null);
+    }
+
+    private void write(ArchiveWriter writer, Entry entry, long filesTotal, long bytesTotal) throws InterruptedException {
+        if (this.cancelled) return;
+
+        BackupFile file = entry.file;
+        try {
+            if (file.getFileType() == BackupFile.FileType.DIRECTORY) {
+                writer.writeDirectory(entry.name, entry.lastModified);
+                return;
+            }
+
+            if (entry.prepared != null) {
+                ArchiveWriter.Prepared prepared = this.await(entry.prepared);
+                if (prepared == null) return;
+                writer.writeEntry(entry.name, entry.lastModified, prepared);
+            } else {
+                long size = file.isEncrypted() ? file.getSize() : file.getContentFile().length();
+                try (InputStream content = file.openContent()) {
+                    writer.writeEntry(entry.name, entry.lastModified, size, content, entry.compress);
+                }
+            }
+
+            this.progressListener.progress(++this.filesDone, filesTotal, this.bytesDone += file.getSize(), bytesTotal);
+        } catch (ExecutionException e) {
+            this.fail(file, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        } catch (Exception e) {
+            this.fail(file, e);
+        }
+    }
+
+    /**
+     * @return The prepared content, or null if the export was cancelled while waiting
+     */
+    private ArchiveWriter.Prepared await(Future<ArchiveWriter.Prepared> prepared) throws InterruptedException, ExecutionException {
+        while (!this.cancelled) {
+            try {
+                return prepared.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException ignored) {
+            }
+        }
+        return null;
+    }
+
+    private void fail(BackupFile file, Exception e) {
+        if (this.cancelled) return;
+        this.failed++;
+        if (this.errorHandler.handle(file, e) == FileExtractor.Decision.ABORT) this.cancel();
+    }
+
+    /**
+     * Stops the export. The archive is completed with the files written so far.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        if (this.pool != null) this.pool.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    private static class Entry {
+        final BackupFile file;
+        final String name;
+        final long lastModified;
+        final boolean compress;
+        Future<ArchiveWriter.Prepared> prepared;
+
+        Entry(BackupFile file, String name, long lastModified, boolean compress) {
+            this.file = file;
+            this.name = name;
+            this.lastModified = lastModified;
+            this.compress = compress;
+        }
+    }
+
+    public enum Format {
+        ZIP("zip"),
+        TAR("tar");
+
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        ArchiveWriter open(File archive) throws IOException {
+            return this == ZIP ? new ZipArchiveWriter(archive) : new TarArchiveWriter(archive);
+        }
+
+        /**
+         * @return The format matching the extension of the file name, or null if there is none
+         */
+        public static Format fromFileName(String fileName) {
+            String extension = BackupPathUtils.getFileExtension(fileName).toLowerCase();
+            for (Format format : values()) {
+                if (format.extension.equals(extension)) return format;
+            }
+            return null;
+        }
+    }
+
+}
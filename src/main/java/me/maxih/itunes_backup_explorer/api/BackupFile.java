@@ -3,20 +3,24 @@ package me.maxih.itunes_backup_explorer.api;
 import com.dd.plist.*;
 import me.maxih.itunes_backup_explorer.util.BackupPathUtils;
 import me.maxih.itunes_backup_explorer.util.UtilDict;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.util.NoSuchElementException;
 import java.util.Optional;
 
 public class BackupFile {
     public final ITunesBackup backup;
-    public final UtilDict data;
     public final String fileID;
     public final String domain;
     public final String relativePath;
@@ -24,8 +28,13 @@ public class BackupFile {
 
     private final FileType fileType;
 
-    private final UtilDict properties;
-    private final NSObject[] objects;
+    // The MBFile archive is only decoded when one of the properties stored in it is first needed.
+    // The full NSDictionary is only built when the record has to be modified or written back.
+    private byte[] rawData;
+    private boolean decoded = false;
+    private UtilDict data;
+    private UtilDict properties;
+    private NSObject[] objects;
 
     private File contentFile = null;
     private String symlinkTarget = null;
@@ -34,26 +43,88 @@ public class BackupFile {
     private int protectionClass;
     private byte[] encryptionKey = null;
     private byte[] digest = null;
+    private Long lastModified = null;
 
-    public BackupFile(ITunesBackup backup, String fileID, String domain, String relativePath, int flags, NSDictionary data) throws BackupReadException {
+    public BackupFile(ITunesBackup backup, String fileID, String domain, String relativePath, int flags, byte[] data) throws BackupReadException {
+        this(backup, fileID, domain, relativePath, flags, data, true);
+    }
+
+    /**
+     * @param requireContent Whether to fail if the content file of a file is missing
+     */
+    BackupFile(ITunesBackup backup, String fileID, String domain, String relativePath, int flags, byte[] data, boolean requireContent) throws BackupReadException {
         this.backup = backup;
         this.fileID = fileID;
         this.domain = domain;
         this.relativePath = relativePath;
         this.flags = flags;
-        this.data = new UtilDict(data);
+        this.rawData = data;
 
         this.fileType = FileType.fromFlags(flags);
 
+        if (this.fileType == FileType.FILE) {
+            this.contentFile = Paths.get(backup.directory.getAbsolutePath(), fileID.substring(0, 2), fileID).toFile();
+            if (requireContent && !this.contentFile.exists())
+                throw new BackupReadException("Missing file: " + this.fileID + " in " + domain + " (" + relativePath + ")");
+        }
+    }
+
+    public BackupFile(ITunesBackup backup, String fileID, String domain, String relativePath, int flags, NSDictionary data) throws BackupReadException {
+        this(backup, fileID, domain, relativePath, flags, (byte[]) null);
+        this.decode(data);
+    }
+
+    /**
+     * Decodes the file properties, using the fast record reader if possible.
+     */
+    private synchronized void decode() throws BackupReadException {
+        if (this.decoded) return;
+
+        MBFileRecord record = MBFileRecord.parse(this.rawData);
+        if (record != null && this.applyRecord(record)) return;
+
+        this.decodeArchive();
+    }
+
+    private boolean applyRecord(MBFileRecord record) {
+        if (this.fileType == FileType.FILE) {
+            if (record.size == null || record.protectionClass == null) return false;
+            this.size = record.size;
+            this.protectionClass = record.protectionClass;
+            this.encryptionKey = record.encryptionKey;
+            this.digest = record.digest;
+        } else if (this.fileType == FileType.SYMBOLIC_LINK) {
+            if (record.target == null) return false;
+            this.symlinkTarget = record.target;
+        }
+        this.lastModified = record.lastModified;
+
+        this.decoded = true;
+        return true;
+    }
+
+    /**
+     * Fully decodes the archived MBFile, which is needed to modify and write it back.
+     */
+    private synchronized void decodeArchive() throws BackupReadException {
+        if (this.data != null) return;
+
         try {
-            this.objects = this.data.getArray("$objects").orElseThrow();
-            this.properties = new UtilDict(this.getObject(NSDictionary.class, this.data.get(UID.class, "$top", "root").orElseThrow()));
+            this.decode((NSDictionary) PropertyListParser.parse(this.rawData));
+        } catch (ClassCastException | IOException | PropertyListFormatException | ParseException |
+                 ParserConfigurationException | SAXException e) {
+            throw new BackupReadException(e);
+        }
+    }
 
-            if (this.fileType == FileType.FILE) {
-                this.contentFile = Paths.get(backup.directory.getAbsolutePath(), fileID.substring(0, 2), fileID).toFile();
-                if (!this.contentFile.exists())
-                    throw new BackupReadException("Missing file: " + this.fileID + " in " + domain + " (" + relativePath + ")");
+    private synchronized void decode(NSDictionary dict) throws BackupReadException {
+        UtilDict data = new UtilDict(dict);
 
+        try {
+            this.objects = data.getArray("$objects").orElseThrow();
+            this.properties = new UtilDict(this.getObject(NSDictionary.class, data.get(UID.class, "$top", "root").orElseThrow()));
+
+            if (this.fileType == FileType.FILE) {
                 this.size = this.properties.get(NSNumber.class, "Size").orElseThrow().longValue();
                 this.protectionClass = this.properties.get(NSNumber.class, "ProtectionClass").orElseThrow().intValue();
 
@@ -79,9 +150,29 @@ public class BackupFile {
                     throw new BackupReadException("Missing target of symbolic link '" + domain + ":" + relativePath + "'");
                 }
             }
+
+            this.lastModified = this.properties.get(NSNumber.class, "LastModified").map(NSNumber::longValue).orElse(null);
         } catch (NoSuchElementException e) {
             throw new BackupReadException(e);
         }
+
+        this.data = data;
+        this.decoded = true;
+        this.rawData = null;
+    }
+
+    /**
+     * Decodes the file properties for accessors that cannot throw.
+     * @return false if the properties could not be decoded
+     */
+    private boolean tryDecode() {
+        try {
+            this.decode();
+            return true;
+        } catch (BackupReadException e) {
+            System.err.println("Could not read properties of '" + domain + ":" + relativePath + "': " + e.getMessage());
+            return false;
+        }
     }
 
     private <T extends NSObject> T getObject(Class<T> type, UID uid) throws NoSuchElementException {
@@ -98,6 +189,16 @@ public class BackupFile {
         this.data.put("$objects", new NSArray(this.objects));
     }
 
+    /**
+     * Replaces the former public field <code>data</code>, which needed every file to be fully decoded when it was read.
+     * @return The decoded NSKeyedArchiver data of this file from the database
+     * @throws BackupReadException if the data could not be decoded
+     */
+    public UtilDict getData() throws BackupReadException {
+        this.decodeArchive();
+        return this.data;
+    }
+
     public FileType getFileType() {
         return fileType;
     }
@@ -107,10 +208,12 @@ public class BackupFile {
     }
 
     public long getSize() {
+        if (!this.tryDecode()) return 0;
         return size;
     }
 
     public boolean isEncrypted() {
+        if (!this.tryDecode()) return false;
         return this.encryptionKey != null;
     }
 
@@ -127,6 +230,7 @@ public class BackupFile {
     }
 
     public String getSymlinkTarget() {
+        if (!this.tryDecode()) return null;
         return this.symlinkTarget;
     }
 
@@ -138,9 +242,46 @@ public class BackupFile {
      * @return The digest bytes or null if the file does not have one
      */
     public byte[] getDigest() {
+        if (!this.tryDecode()) return null;
         return this.digest;
     }
 
+    /**
+     * @return The modification time in seconds since the epoch, or null if it is unknown
+     */
+    public Long getLastModified() {
+        if (!this.tryDecode()) return null;
+        return this.lastModified;
+    }
+
+    /**
+     * Opens the content of this file for reading, decrypting it on the fly if necessary.
+     * The padding of encrypted files is cut off using the size from the database, so it is never checked.
+     * The returned stream must be closed.
+     */
+    public InputStream openContent() throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException {
+        if (this.fileType != FileType.FILE) throw new UnsupportedOperationException("Only files have content");
+        this.decode();
+
+        InputStream source = new BufferedInputStream(new FileInputStream(this.contentFile), 65536);
+        if (!this.isEncrypted()) return source;
+
+        try {
+            if (this.backup.manifest.getKeyBag().isEmpty())
+                throw new BackupReadException("Encrypted file in non-encrypted backup");
+
+            InputStream decrypted = this.backup.manifest.getKeyBag().get().decryptStream(
+                    this.protectionClass, this.encryptionKey, source, "AES/CBC/NoPadding");
+            return new LimitedInputStream(decrypted, this.size);
+        } catch (InvalidKeyException e) {
+            source.close();
+            throw new BackupReadException(e);
+        } catch (BackupReadException | NotUnlockedException | UnsupportedCryptoException e) {
+            source.close();
+            throw e;
+        }
+    }
+
     byte[] calcFileDigest() throws IOException, UnsupportedCryptoException {
         try {
             MessageDigest sha1Digest = MessageDigest.getInstance("SHA-1");
@@ -162,12 +303,21 @@ public class BackupFile {
 
     public void extract(File destination)
             throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException, UnsupportedOperationException {
+        this.extract(destination, ContentCopyMode.COPY);
+    }
+
+    /**
+     * @param copyMode How the content file is copied if it is not encrypted
+     */
+    public void extract(File destination, ContentCopyMode copyMode)
+            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException, UnsupportedOperationException {
 
         switch (this.fileType) {
             case DIRECTORY:
                 if (!destination.exists()) Files.createDirectory(destination.toPath());
                 break;
             case FILE:
+                this.decode();
                 if (this.isEncrypted()) {
                     if (this.backup.manifest.getKeyBag().isEmpty())
                         throw new BackupReadException("Encrypted file in non-encrypted backup");
@@ -179,13 +329,9 @@ public class BackupFile {
                     }
 
                     //noinspection ResultOfMethodCallIgnored
-                    this.properties.get(NSNumber.class, "LastModified")
-                            .map(NSNumber::longValue)
-                            .map(seconds -> seconds * 1000)
-                            .ifPresent(destination::setLastModified);
+                    if (this.lastModified != null) destination.setLastModified(this.lastModified * 1000);
                 } else {
-                    Files.copy(this.contentFile.toPath(), destination.toPath(),
-                            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                    this.copyContent(destination.toPath(), copyMode);
                 }
                 break;
             case SYMBOLIC_LINK:
@@ -194,9 +340,52 @@ public class BackupFile {
 
     }
 
-    public void extractToFolder(File destinationFolder, boolean withRelativePath)
-            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException, UnsupportedOperationException {
+    private void copyContent(Path destination, ContentCopyMode copyMode) throws IOException {
+        Path source = this.contentFile.toPath();
+
+        switch (copyMode) {
+            case LINK:
+                // Linked under a temporary name and moved over the destination, which may already have been created
+                Path tempLink = destination.resolveSibling(destination.getFileName() + "." + this.fileID + ".tmp");
+                try {
+                    Files.deleteIfExists(tempLink);
+                    Files.createLink(tempLink, source);
+                    Files.move(tempLink, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return;
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    // Different file system, or one without hard links
+                    Files.deleteIfExists(tempLink);
+                }
+                // fall through
+            case TRANSFER:
+                try (
+                        FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+                        FileChannel destinationChannel = FileChannel.open(destination,
+                                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+                ) {
+                    long size = sourceChannel.size();
+                    long position = 0;
+                    while (position < size) {
+                        long transferred = sourceChannel.transferTo(position, size - position, destinationChannel);
+                        if (transferred <= 0) break;
+                        position += transferred;
+                    }
+                }
+                Files.setLastModifiedTime(destination, Files.getLastModifiedTime(source));
+                break;
+            case COPY:
+                Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                break;
+        }
+    }
 
+    /**
+     * @param destinationFolder The folder this file would be extracted to
+     * @param withRelativePath  Whether the domain and relative path should be kept below the folder
+     * @return The file this backup file would be extracted to, with invalid characters replaced if necessary
+     * @throws IOException if the path contains invalid characters that could not be replaced
+     */
+    public File getExtractionDestination(File destinationFolder, boolean withRelativePath) throws IOException {
         String relative;
 
         try {
@@ -211,7 +400,13 @@ public class BackupFile {
                 throw new IOException("Invalid character in filename, failed to replace", e1);
             }
         }
-        File destination = new File(destinationFolder.getAbsolutePath(), relative);
+        return new File(destinationFolder.getAbsolutePath(), relative);
+    }
+
+    public void extractToFolder(File destinationFolder, boolean withRelativePath)
+            throws IOException, BackupReadException, NotUnlockedException, UnsupportedCryptoException, UnsupportedOperationException {
+
+        File destination = this.getExtractionDestination(destinationFolder, withRelativePath);
         if (destination.exists() && this.fileType != FileType.DIRECTORY)
             throw new FileAlreadyExistsException(destination.getAbsolutePath());
 
@@ -223,6 +418,9 @@ public class BackupFile {
         BasicFileAttributes newFileAttributes = Files.readAttributes(newFile.toPath(), BasicFileAttributes.class);
         if (!newFileAttributes.isRegularFile()) throw new IOException("Not a file");
         if (this.fileType != FileType.FILE) throw new UnsupportedOperationException("Not implemented yet");
+        // Before anything is changed, as it fails while the database is still being read
+        this.backup.connectToDatabase(false);
+        this.decodeArchive();
         this.backupOriginal();
         this.size = newFileAttributes.size();
         this.properties.put("Size", this.size);
@@ -258,6 +456,8 @@ public class BackupFile {
      * @throws DatabaseConnectionException if the database connection failed
      */
     public void delete() throws IOException, DatabaseConnectionException {
+        // Before anything is changed, as it fails while the database is still being read
+        this.backup.connectToDatabase(false);
         try {
             this.backupOriginal(true);
         } catch (FileNotFoundException e) {
@@ -285,7 +485,11 @@ public class BackupFile {
             backupName = this.fileID + "." + (++i);
         }
 
-        BinaryPropertyListWriter.write(this.data.dict, new File(dir, backupName + ".plist"));
+        try {
+            BinaryPropertyListWriter.write(this.getData().dict, new File(dir, backupName + ".plist"));
+        } catch (BackupReadException e) {
+            throw new IOException(e);
+        }
 
         if (this.contentFile != null && this.contentFile.exists()) {
             if (move)
@@ -320,4 +524,49 @@ public class BackupFile {
             throw new BackupReadException("Unknown file type " + flags);
         }
     }
+
+    /**
+     * Ends after a fixed number of bytes, e.g. before the padding of a decrypted file.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
@@ -3,16 +3,27 @@ package me.maxih.itunes_backup_explorer.api;
 import com.dd.plist.NSData;
 import com.dd.plist.NSDictionary;
 import com.dd.plist.NSString;
+import com.dd.plist.PropertyListParser;
+import me.maxih.itunes_backup_explorer.util.LightPListParser;
 import me.maxih.itunes_backup_explorer.util.UtilDict;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.*;
 import java.util.stream.Stream;
 
+/**
+ * The device information from Info.plist.
+ * Application records contain large blobs like icons, so when the info is read from a file,
+ * they are only loaded from it when needed and can be dropped again under memory pressure.
+ */
 public class BackupInfo {
-    public final Map<String, ApplicationInfo> applications;
+    private final File file;
+    private final Set<String> applicationIDs;
+    // Only set if the info was created from a complete dictionary without a file to reload it from
+    private final Map<String, ApplicationInfo> applications;
+    private SoftReference<Map<String, ApplicationInfo>> loadedApplications = new SoftReference<>(null);
+
     public final String[] installedApplications;
     public final Date lastBackupDate;
     public final String deviceName;
@@ -35,19 +46,24 @@ public class BackupInfo {
     public final String uniqueIdentifier;
 
     public BackupInfo(NSDictionary data) throws BackupReadException {
+        this(data, null);
+    }
+
+    /**
+     * @param data The contents of Info.plist, which may lack data values if file is given
+     * @param file Info.plist to load the application records from when they are first needed,
+     *             or null to read them from data right away
+     */
+    public BackupInfo(NSDictionary data, File file) throws BackupReadException {
         UtilDict dict = new UtilDict(data);
+        this.file = file;
         try {
-            this.applications = new HashMap<>();
-            dict.getDict("Applications").orElseThrow().forTypedEntries(NSDictionary.class, (key, value) -> {
-                UtilDict info = new UtilDict(value);
-                ApplicationInfo app = new ApplicationInfo(
-                        info.getData("PlaceholderIcon").orElseThrow(),
-                        info.getData("iTunesMetadata").orElse(null),
-                        info.getBoolean("IsDemotedApp").orElse(false),
-                        info.getData("ApplicationSINF").orElse(null)
-                );
-                this.applications.put(key, app);
-            });
+            UtilDict applicationsDict = dict.getDict("Applications").orElseThrow();
+            Set<String> ids = new HashSet<>();
+            applicationsDict.forTypedEntries(NSDictionary.class, (key, value) -> ids.add(key));
+            this.applicationIDs = Collections.unmodifiableSet(ids);
+            this.applications = file == null ? parseApplications(applicationsDict) : null;
+
             this.installedApplications = dict.getTypedArrayStream(NSString.class, "Installed Applications")
                     .orElse(Stream.empty())
                     .map(NSString::getContent)
@@ -75,6 +91,73 @@ public class BackupInfo {
         }
     }
 
+    /**
+     * Reads Info.plist without decoding any data values, which are mostly application icons and metadata.
+     */
+    public static BackupInfo read(File file) throws BackupReadException {
+        try {
+            NSDictionary pList = (NSDictionary) LightPListParser.parse(file);
+            // Binary property list
+            if (pList == null) pList = (NSDictionary) PropertyListParser.parse(file);
+            if (pList == null) throw new BackupReadException("Info.plist could not be read");
+            return new BackupInfo(pList, file);
+        } catch (BackupReadException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BackupReadException(e);
+        }
+    }
+
+    public Set<String> getApplicationIDs() {
+        return applicationIDs;
+    }
+
+    public boolean hasApplication(String id) {
+        return applicationIDs.contains(id);
+    }
+
+    /**
+     * Parses the application records including their icons from Info.plist on first use.
+     * @return The applications by bundle ID, or an empty map if they could not be read
+     */
+    public synchronized Map<String, ApplicationInfo> getApplications() {
+        if (this.applications != null) return this.applications;
+
+        Map<String, ApplicationInfo> loaded = this.loadedApplications.get();
+        if (loaded != null) return loaded;
+
+        try {
+            NSDictionary pList = (NSDictionary) PropertyListParser.parse(this.file);
+            loaded = parseApplications(new UtilDict(pList).getDict("Applications").orElseThrow());
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Collections.emptyMap();
+        }
+
+        this.loadedApplications = new SoftReference<>(loaded);
+        return loaded;
+    }
+
+    public Optional<ApplicationInfo> getApplication(String id) {
+        if (!hasApplication(id)) return Optional.empty();
+        return Optional.ofNullable(getApplications().get(id));
+    }
+
+    private static Map<String, ApplicationInfo> parseApplications(UtilDict applicationsDict) {
+        Map<String, ApplicationInfo> applications = new HashMap<>();
+        applicationsDict.forTypedEntries(NSDictionary.class, (key, value) -> {
+            UtilDict info = new UtilDict(value);
+            ApplicationInfo app = new ApplicationInfo(
+                    info.getData("PlaceholderIcon").orElseThrow(),
+                    info.getData("iTunesMetadata").orElse(null),
+                    info.getBoolean("IsDemotedApp").orElse(false),
+                    info.getData("ApplicationSINF").orElse(null)
+            );
+            applications.put(key, app);
+        });
+        return Collections.unmodifiableMap(applications);
+    }
+
     public static class ApplicationInfo {
         public final NSData placeholderIcon;
         public final NSData iTunesMetadata;
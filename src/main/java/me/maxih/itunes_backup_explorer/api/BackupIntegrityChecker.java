@@ -0,0 +1,311 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Checks a whole backup for files that iTunes would refuse to restore.
+ * Every file in the database is checked for a content file of the right size,
+ * and content files with a SHA-1 digest in the database are hashed and compared with it.
+ * The database is read on the calling thread while the content files are checked on a pool with one thread per processor.
+ * Large content files are memory-mapped in big windows, so hashing them doesn't copy them through the heap.
+ * A checker can only be used once.
+ */
+public class BackupIntegrityChecker {
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Smaller files are read into a buffer, because mapping them costs more than copying them
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+    private static final long MAP_SIZE = 64 * 1024 * 1024;
+    private static final int DIGEST_LENGTH = 20;
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAP_THRESHOLD));
+
+    private final int threads;
+
+    private ProgressListener progressListener = (filesChecked, bytesHashed) -> {
+    };
+
+    private volatile boolean cancelled = false;
+    private boolean started = false;
+    private ExecutorService pool;
+
+    private final List<Problem> problems = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong filesChecked = new AtomicLong();
+    private final AtomicLong digestsChecked = new AtomicLong();
+    private final AtomicLong bytesHashed = new AtomicLong();
+
+    public BackupIntegrityChecker() {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads Number of threads for checking and hashing the content files
+     */
+    public BackupIntegrityChecker(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("At least one thread is needed");
+        this.threads = threads;
+    }
+
+    /**
+     * The listener is called from the worker threads after each checked file.
+     */
+    public BackupIntegrityChecker setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Checks all files of the backup and waits until all of them are done.
+     * The database of an encrypted backup has to be decrypted before.
+     *
+     * @throws DatabaseConnectionException if the backup database could not be read
+     * @throws InterruptedException        if the calling thread was interrupted, which cancels the check
+     */
+    public Result check(ITunesBackup backup) throws DatabaseConnectionException, InterruptedException {
+        synchronized (this) {
+            if (this.started) throw new IllegalStateException("Checker was already used");
+            this.started = true;
+        }
+
+        long startTime = System.nanoTime();
+
+        this.pool = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "integrity-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Limits the number of queued files, so the database is not read far ahead of the workers
+        Semaphore inFlight = new Semaphore(4 * this.threads);
+
+        try (Stream<BackupFile> files = backup.streamAllRecords()) {
+            for (BackupFile file : (Iterable<BackupFile>) files::iterator) {
+                if (file.getFileType() != BackupFile.FileType.FILE) continue;
+
+                inFlight.acquire();
+                if (this.cancelled) {
+                    inFlight.release();
+                    break;
+                }
+
+                try {
+                    this.pool.execute(() -> {
+                        try {
+                            this.check(file);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Cancelled in the meantime
+                    break;
+                }
+            }
+
+            this.pool.shutdown();
+            while (!this.pool.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (this.cancelled) break;
+            }
+        } catch (InterruptedException e) {
+            this.cancel();
+            throw e;
+        } finally {
+            this.pool.shutdownNow();
+        }
+
+        List<Problem> sortedProblems;
+        synchronized (this.problems) {
+            sortedProblems = new ArrayList<>(this.problems);
+        }
+        sortedProblems.sort(Comparator.comparing((Problem problem) -> problem.file.domain).thenComparing(problem -> problem.file.relativePath));
+
+        return new Result(this.filesChecked.get(), this.digestsChecked.get(), this.bytesHashed.get(),
+                System.nanoTime() - startTime, sortedProblems, this.cancelled);
+    }
+
+    private void check(BackupFile file) {
+        if (this.cancelled) return;
+
+        File contentFile = file.getContentFile();
+        try {
+            if (!contentFile.isFile()) {
+                this.problems.add(new Problem(Kind.MISSING, file, "", ""));
+                return;
+            }
+
+            long length = contentFile.length();
+            if (!hasExpectedLength(file, length)) {
+                this.problems.add(new Problem(Kind.SIZE, file, Long.toString(file.getSize()), Long.toString(length)));
+            }
+
+            byte[] expectedDigest = file.getDigest();
+            if (expectedDigest != null && expectedDigest.length == DIGEST_LENGTH) {
+                byte[] digest = sha1(contentFile);
+                this.digestsChecked.incrementAndGet();
+                this.bytesHashed.addAndGet(length);
+                if (!Arrays.equals(digest, expectedDigest))
+                    this.problems.add(new Problem(Kind.CORRUPT, file, HexFormat.of().formatHex(expectedDigest), HexFormat.of().formatHex(digest)));
+            }
+        } catch (IOException | UnsupportedCryptoException | RuntimeException e) {
+            if (this.cancelled) return;
+            this.problems.add(new Problem(Kind.UNREADABLE, file, "", String.valueOf(e.getMessage())));
+        } finally {
+            this.progressListener.progress(this.filesChecked.incrementAndGet(), this.bytesHashed.get());
+        }
+    }
+
+    /**
+     * Encrypted content files are padded to the next full AES block, and at least one byte of padding is added
+     */
+    private static boolean hasExpectedLength(BackupFile file, long length) {
+        long size = file.getSize();
+        if (!file.isEncrypted()) return length == size;
+        // Some backups lack the padding, which BackupFilePaddingFixer takes care of while extracting
+        return length % AES_BLOCK_SIZE == 0 && length >= size && length <= size + AES_BLOCK_SIZE;
+    }
+
+    private static byte[] sha1(File file) throws IOException, UnsupportedCryptoException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new UnsupportedCryptoException(e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = READ_BUFFERS.get();
+                buffer.clear();
+                while (buffer.position() < size && channel.read(buffer) != -1) {
+                }
+                digest.update(buffer.array(), 0, buffer.position());
+            } else {
+                for (long position = 0; position < size; position += MAP_SIZE) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                    digest.update(mapped);
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Stops the check. The result contains the files checked so far.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        if (this.pool != null) this.pool.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        void progress(long filesChecked, long bytesHashed);
+    }
+
+    public enum Kind {
+        /**
+         * The content file does not exist
+         */
+        MISSING,
+        /**
+         * The content file does not have the size in the database
+         */
+        SIZE,
+        /**
+         * The content file does not match the digest in the database
+         */
+        CORRUPT,
+        /**
+         * The content file could not be read
+         */
+        UNREADABLE
+    }
+
+    public static class Problem {
+        public final Kind kind;
+        public final BackupFile file;
+        public final String expected;
+        public final String actual;
+
+        Problem(Kind kind, BackupFile file, String expected, String actual) {
+            this.kind = kind;
+            this.file = file;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        @Override
+        public String toString() {
+            return this.kind + " " + this.file.domain + ":" + this.file.relativePath + " (" + this.file.fileID + ")"
+                    + (this.expected.isEmpty() && this.actual.isEmpty() ? "" : ": expected " + this.expected + ", but got " + this.actual);
+        }
+    }
+
+    public static class Result {
+        public final long filesChecked;
+        public final long digestsChecked;
+        public final long bytesHashed;
+        public final long elapsedNanos;
+        /**
+         * Sorted by domain and relative path
+         */
+        public final List<Problem> problems;
+        public final boolean cancelled;
+
+        Result(long filesChecked, long digestsChecked, long bytesHashed, long elapsedNanos, List<Problem> problems, boolean cancelled) {
+            this.filesChecked = filesChecked;
+            this.digestsChecked = digestsChecked;
+            this.bytesHashed = bytesHashed;
+            this.elapsedNanos = elapsedNanos;
+            this.problems = Collections.unmodifiableList(problems);
+            this.cancelled = cancelled;
+        }
+
+        public double getFilesPerSecond() {
+            return this.elapsedNanos > 0 ? this.filesChecked * 1e9 / this.elapsedNanos : 0;
+        }
+
+        public double getMegabytesPerSecond() {
+            return this.elapsedNanos > 0 ? this.bytesHashed * 1e9 / this.elapsedNanos / (1024 * 1024) : 0;
+        }
+
+        public long count(Kind kind) {
+            return this.problems.stream().filter(problem -> problem.kind == kind).count();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files checked, %d digests verified (%.1f MB) in %.1f s, %.0f files/s, %.1f MB/s; %d missing, %d wrong size, %d corrupt, %d unreadable%s",
+                    this.filesChecked, this.digestsChecked, this.bytesHashed / (1024.0 * 1024), this.elapsedNanos / 1e9,
+                    this.getFilesPerSecond(), this.getMegabytesPerSecond(),
+                    this.count(Kind.MISSING), this.count(Kind.SIZE), this.count(Kind.CORRUPT), this.count(Kind.UNREADABLE),
+                    this.cancelled ? " (cancelled)" : "");
+        }
+    }
+}
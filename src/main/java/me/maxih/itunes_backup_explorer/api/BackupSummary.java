@@ -0,0 +1,269 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import me.maxih.itunes_backup_explorer.util.CacheDirectories;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * The few properties of a backup needed to list it, cached on disk so the backup list can be shown
+ * without parsing every Manifest.plist and Info.plist first.
+ * A cached summary is only valid as long as size and modification time of the plists and Manifest.db are unchanged.
+ */
+public class BackupSummary {
+    private static final String FILE_NAME = "summary.properties";
+    private static final int VERSION = 2;
+
+    public final File directory;
+    public final String deviceName;
+    public final Date date;
+    // Can be null if Info.plist is missing
+    public final Date lastBackupDate;
+    public final boolean encrypted;
+    public final String productType;
+    public final String productVersion;
+    public final String serialNumber;
+    /**
+     * Number of files in the database, or -1 if unknown
+     */
+    public final long fileCount;
+    /**
+     * Total size of the files in the database in bytes, or -1 if unknown
+     */
+    public final long totalSize;
+
+    private final Stamp stamp;
+
+    private BackupSummary(File directory, String deviceName, Date date, Date lastBackupDate, boolean encrypted,
+                          String productType, String productVersion, String serialNumber,
+                          long fileCount, long totalSize, Stamp stamp) {
+        this.directory = directory;
+        this.deviceName = deviceName;
+        this.date = date;
+        this.lastBackupDate = lastBackupDate;
+        this.encrypted = encrypted;
+        this.productType = productType;
+        this.productVersion = productVersion;
+        this.serialNumber = serialNumber;
+        this.fileCount = fileCount;
+        this.totalSize = totalSize;
+        this.stamp = stamp;
+    }
+
+    /**
+     * Creates the summary of a loaded backup from its plists and database, without touching the stored files.
+     * The file count and total size are only known if the database is readable, i.e. not encrypted.
+     */
+    public static BackupSummary of(ITunesBackup backup) {
+        // Taken before reading, so changes in the meantime make the summary invalid
+        Stamp stamp = Stamp.of(backup.directory);
+
+        long fileCount = -1;
+        long totalSize = -1;
+        File database = backup.decryptedDatabaseFile;
+        if (database != null && database.isFile()) {
+            // A separate connection, so queries on the shared connection of the backup are not disturbed
+            try (
+                    Connection con = DriverManager.getConnection("jdbc:sqlite:" + database.getCanonicalFile().toURI() + "?mode=ro");
+                    Statement statement = con.createStatement();
+                    ResultSet result = statement.executeQuery(
+                            "SELECT `fileID`, `domain`, `relativePath`, `flags`, `file` FROM Files WHERE `flags` = 1")
+            ) {
+                long count = 0;
+                long size = 0;
+                while (result.next()) {
+                    BackupFile file = new BackupFile(backup, result.getString(1), result.getString(2), result.getString(3),
+                            result.getInt(4), result.getBytes(5), false);
+                    count++;
+                    size += file.getSize();
+                }
+                fileCount = count;
+                totalSize = size;
+            } catch (SQLException | IOException | BackupReadException e) {
+                System.out.println("Files of '" + backup.manifest.deviceName + "' could not be counted: " + e.getMessage());
+            }
+        }
+
+        return new BackupSummary(
+                backup.directory,
+                backup.manifest.deviceName,
+                backup.manifest.date,
+                backup.getBackupInfo().map(info -> info.lastBackupDate).orElse(null),
+                backup.manifest.encrypted,
+                backup.manifest.productType,
+                backup.manifest.productVersion,
+                backup.manifest.serialNumber,
+                fileCount,
+                totalSize,
+                stamp
+        );
+    }
+
+    /**
+     * @return The cached summary of the backup in this directory if it is still valid
+     */
+    public static Optional<BackupSummary> readCached(File directory) {
+        File file = getCacheFile(directory);
+        if (!file.isFile()) return Optional.empty();
+
+        Properties properties = new Properties();
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            System.out.println("Backup summary " + file.getAbsolutePath() + " could not be read: " + e.getMessage());
+            return Optional.empty();
+        }
+
+        try {
+            if (Integer.parseInt(properties.getProperty("version", "0")) != VERSION) return Optional.empty();
+
+            Stamp stamp = new Stamp(
+                    Long.parseLong(properties.getProperty("manifestPListSize")),
+                    Long.parseLong(properties.getProperty("manifestPListLastModified")),
+                    Long.parseLong(properties.getProperty("infoPListSize")),
+                    Long.parseLong(properties.getProperty("infoPListLastModified")),
+                    Long.parseLong(properties.getProperty("manifestDBSize")),
+                    Long.parseLong(properties.getProperty("manifestDBLastModified"))
+            );
+            if (!stamp.equals(Stamp.of(directory))) return Optional.empty();
+
+            String lastBackupDate = properties.getProperty("lastBackupDate");
+            String deviceName = properties.getProperty("deviceName");
+            if (deviceName == null) return Optional.empty();
+
+            return Optional.of(new BackupSummary(
+                    directory,
+                    deviceName,
+                    new Date(Long.parseLong(properties.getProperty("date"))),
+                    lastBackupDate == null ? null : new Date(Long.parseLong(lastBackupDate)),
+                    Boolean.parseBoolean(properties.getProperty("encrypted")),
+                    properties.getProperty("productType"),
+                    properties.getProperty("productVersion"),
+                    properties.getProperty("serialNumber"),
+                    Long.parseLong(properties.getProperty("fileCount", "-1")),
+                    Long.parseLong(properties.getProperty("totalSize", "-1")),
+                    stamp
+            ));
+        } catch (NumberFormatException | NullPointerException e) {
+            System.out.println("Backup summary " + file.getAbsolutePath() + " is invalid");
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Returns the cached summary of the backup if it is still valid, otherwise creates and caches a new one.
+     */
+    public static BackupSummary update(ITunesBackup backup) {
+        Optional<BackupSummary> cached = readCached(backup.directory);
+        if (cached.isPresent()) return cached.get();
+
+        BackupSummary summary = of(backup);
+        try {
+            summary.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return summary;
+    }
+
+    /**
+     * Writes the summary to the cache directory of the backup.
+     */
+    public void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("version", String.valueOf(VERSION));
+        properties.setProperty("manifestPListSize", String.valueOf(stamp.manifestPListSize));
+        properties.setProperty("manifestPListLastModified", String.valueOf(stamp.manifestPListLastModified));
+        properties.setProperty("infoPListSize", String.valueOf(stamp.infoPListSize));
+        properties.setProperty("infoPListLastModified", String.valueOf(stamp.infoPListLastModified));
+        properties.setProperty("manifestDBSize", String.valueOf(stamp.manifestDBSize));
+        properties.setProperty("manifestDBLastModified", String.valueOf(stamp.manifestDBLastModified));
+        properties.setProperty("deviceName", deviceName);
+        properties.setProperty("date", String.valueOf(date.getTime()));
+        if (lastBackupDate != null) properties.setProperty("lastBackupDate", String.valueOf(lastBackupDate.getTime()));
+        properties.setProperty("encrypted", String.valueOf(encrypted));
+        if (productType != null) properties.setProperty("productType", productType);
+        if (productVersion != null) properties.setProperty("productVersion", productVersion);
+        if (serialNumber != null) properties.setProperty("serialNumber", serialNumber);
+        properties.setProperty("fileCount", String.valueOf(fileCount));
+        properties.setProperty("totalSize", String.valueOf(totalSize));
+
+        File file = getCacheFile(directory);
+        Files.createDirectories(file.getParentFile().toPath());
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            properties.store(outputStream, "iTunes Backup Explorer backup summary");
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The date to show for this backup, which is the last backup date if it is known
+     */
+    public Date getDisplayDate() {
+        return lastBackupDate != null ? lastBackupDate : date;
+    }
+
+    private static File getCacheFile(File directory) {
+        return new File(CacheDirectories.getBackupCacheDirectory(directory), FILE_NAME);
+    }
+
+    private static class Stamp {
+        final long manifestPListSize;
+        final long manifestPListLastModified;
+        final long infoPListSize;
+        final long infoPListLastModified;
+        final long manifestDBSize;
+        final long manifestDBLastModified;
+
+        Stamp(long manifestPListSize, long manifestPListLastModified, long infoPListSize, long infoPListLastModified,
+              long manifestDBSize, long manifestDBLastModified) {
+            this.manifestPListSize = manifestPListSize;
+            this.manifestPListLastModified = manifestPListLastModified;
+            this.infoPListSize = infoPListSize;
+            this.infoPListLastModified = infoPListLastModified;
+            this.manifestDBSize = manifestDBSize;
+            this.manifestDBLastModified = manifestDBLastModified;
+        }
+
+        static Stamp of(File directory) {
+            File manifestPList = new File(directory, "Manifest.plist");
+            File infoPList = new File(directory, "Info.plist");
+            File manifestDB = new File(directory, "Manifest.db");
+            // length and lastModified return 0 for missing files
+            return new Stamp(
+                    manifestPList.length(), manifestPList.lastModified(),
+                    infoPList.length(), infoPList.lastModified(),
+                    manifestDB.length(), manifestDB.lastModified()
+            );
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Stamp)) return false;
+            Stamp other = (Stamp) o;
+            return manifestPListSize == other.manifestPListSize
+                    && manifestPListLastModified == other.manifestPListLastModified
+                    && infoPListSize == other.infoPListSize
+                    && infoPListLastModified == other.infoPListLastModified
+                    && manifestDBSize == other.manifestDBSize
+                    && manifestDBLastModified == other.manifestDBLastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(manifestPListLastModified) * 31 + Long.hashCode(manifestDBLastModified);
+        }
+    }
+
+}
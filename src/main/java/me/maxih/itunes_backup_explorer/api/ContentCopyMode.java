@@ -0,0 +1,23 @@
+package me.maxih.itunes_backup_explorer.api;
+
+/**
+ * How the content of unencrypted files is copied when extracting them.
+ * Encrypted files always have to be decrypted and written.
+ */
+public enum ContentCopyMode {
+    /**
+     * {@link java.nio.file.Files#copy} with all file attributes
+     */
+    COPY,
+    /**
+     * {@link java.nio.channels.FileChannel#transferTo}, which lets the kernel copy the data
+     * without passing it through a buffer in the JVM. Only the modification time is kept.
+     */
+    TRANSFER,
+    /**
+     * A hard link to the content file if the destination is on the same file system, otherwise {@link #TRANSFER}.
+     * This takes no time and no space, but the extracted files share their data with the backup,
+     * so modifying them modifies the backup as well.
+     */
+    LINK
+}
@@ -6,6 +6,10 @@ public class DatabaseConnectionException extends Exception {
         super("Database connection failed");
     }
 
+    public DatabaseConnectionException(String message) {
+        super(message);
+    }
+
     public DatabaseConnectionException(Throwable cause) {
         this();
         initCause(cause);
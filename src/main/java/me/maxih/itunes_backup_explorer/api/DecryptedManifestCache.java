@@ -0,0 +1,160 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps decrypted copies of Manifest.db for the rest of the session after a backup is closed,
+ * so reopening an encrypted backup doesn't have to decrypt the whole database again.
+ * Entries are tied to the backup directory and the size and modification time of the encrypted Manifest.db.
+ * Unused entries are deleted, least recently used first, as soon as all entries together exceed the disk budget.
+ */
+public class DecryptedManifestCache {
+    public static final long DEFAULT_DISK_BUDGET = 2L * 1024 * 1024 * 1024;
+
+    private static long diskBudget = DEFAULT_DISK_BUDGET;
+
+    // Least recently used first
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Sets the maximum total size of cached decrypted databases. 0 disables keeping them after use.
+     */
+    public static synchronized void setDiskBudget(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("Disk budget must not be negative");
+        diskBudget = bytes;
+        evict();
+    }
+
+    /**
+     * Looks up a decrypted copy of the database of the given backup and marks it as in use.
+     * @return The decrypted database or null if there is no valid copy
+     */
+    public static synchronized File acquire(ITunesBackup backup) {
+        String key = key(backup);
+        if (key == null) return null;
+
+        Entry entry = entries.get(key);
+        // Another instance of the same backup is using it and might modify it
+        if (entry == null || entry.inUse) return null;
+
+        if (!entry.isValid()) {
+            System.out.println("Cached decrypted database " + entry.file.getAbsolutePath() + " was modified, discarding it");
+            remove(key);
+            return null;
+        }
+
+        entry.inUse = true;
+        return entry.file;
+    }
+
+    /**
+     * Adds a freshly decrypted database to the cache and marks it as in use.
+     * Replaces an older copy for the same version of the backup.
+     */
+    public static synchronized void put(ITunesBackup backup, File decryptedFile) {
+        String key = key(backup);
+        if (key == null) return;
+
+        Entry previous = entries.get(key);
+        if (previous != null && !previous.file.equals(decryptedFile)) remove(key);
+
+        decryptedFile.deleteOnExit();
+        Entry entry = new Entry(decryptedFile);
+        entry.inUse = true;
+        entries.put(key, entry);
+        evict();
+    }
+
+    /**
+     * Called after the encrypted Manifest.db was rewritten from the decrypted copy,
+     * so the copy belongs to the new version of the backup.
+     */
+    public static synchronized void update(ITunesBackup backup, File decryptedFile) {
+        entries.entrySet().removeIf(e -> e.getValue().file.equals(decryptedFile));
+        put(backup, decryptedFile);
+    }
+
+    /**
+     * Marks a decrypted database as no longer in use by an open backup.
+     * If it is not cached, or doesn't fit into the budget, it is deleted.
+     */
+    public static synchronized void release(File decryptedFile) {
+        Optional<Entry> entry = entries.values().stream().filter(e -> e.file.equals(decryptedFile)).findFirst();
+        if (entry.isEmpty()) {
+            delete(decryptedFile);
+            return;
+        }
+
+        entry.get().inUse = false;
+        evict();
+    }
+
+    /**
+     * Deletes all cached databases that are not in use. Should be called before exiting.
+     */
+    public static synchronized void clear() {
+        entries.entrySet().removeIf(e -> {
+            if (e.getValue().inUse) return false;
+            delete(e.getValue().file);
+            return true;
+        });
+    }
+
+    private static void evict() {
+        long total = entries.values().stream().mapToLong(e -> e.file.length()).sum();
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (total > diskBudget && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.inUse) continue;
+            total -= entry.file.length();
+            delete(entry.file);
+            iterator.remove();
+        }
+    }
+
+    private static void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null && !entry.inUse) delete(entry.file);
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete())
+            System.out.println("Could not delete temporary file " + file.getAbsolutePath());
+    }
+
+    private static String key(ITunesBackup backup) {
+        try {
+            return backup.directory.getCanonicalPath()
+                    + File.pathSeparator + backup.manifestDBFile.length()
+                    + File.pathSeparator + backup.manifestDBFile.lastModified();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static class Entry {
+        final File file;
+        boolean inUse;
+        // State of the decrypted copy when it last matched the encrypted Manifest.db
+        final long size;
+        final long lastModified;
+
+        Entry(File file) {
+            this.file = file;
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        boolean isValid() {
+            return file.exists() && file.length() == size && file.lastModified() == lastModified;
+        }
+    }
+
+    private DecryptedManifestCache() {
+    }
+
+}
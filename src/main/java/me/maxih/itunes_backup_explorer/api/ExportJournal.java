@@ -0,0 +1,145 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which files of an export were started and which are complete, so an interrupted export can be resumed.
+ * The journal is a text file in the destination folder which is only ever appended to.
+ * A crash can at most lose the last lines, which only means that those files are extracted again.
+ * A file is recorded as started before its temporary file is created, so the export never leaves a file behind
+ * that the journal doesn't know about.
+ */
+class ExportJournal implements Closeable {
+    static final String FILE_NAME = ".export-journal";
+    private static final String HEADER = "iTunes Backup Explorer export journal 2 ";
+
+    private final File file;
+    private final Set<String> started = new HashSet<>();
+    private final Map<String, Long> completed = new HashMap<>();
+    private Writer writer;
+
+    /**
+     * Reads the journal of an earlier export of the same backup to the folder, or starts a new one.
+     * A journal of another backup, or of an older state of the same backup, is discarded.
+     * If the journal can't be written, the export still works, but can't be resumed.
+     */
+    ExportJournal(File folder, ITunesBackup backup) {
+        this.file = new File(folder, FILE_NAME);
+        String header = HEADER + backupKey(backup);
+
+        boolean resume = false;
+        if (this.file.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(this.file.toPath(), StandardCharsets.UTF_8)) {
+                if (header.equals(reader.readLine())) {
+                    resume = true;
+                    this.read(reader);
+                } else {
+                    System.out.println("Export journal " + this.file.getAbsolutePath() + " belongs to another backup, starting a new one");
+                }
+            } catch (IOException e) {
+                System.out.println("Export journal " + this.file.getAbsolutePath() + " could not be read: " + e.getMessage());
+            }
+        }
+
+        try {
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, resume), StandardCharsets.UTF_8));
+            if (!resume) this.writeLine(header);
+        } catch (IOException e) {
+            System.out.println("Export journal " + this.file.getAbsolutePath() + " could not be written, the export can't be resumed: " + e.getMessage());
+            this.writer = null;
+        }
+    }
+
+    /**
+     * Identifies the backup and its state. The directory name is not enough,
+     * because it is the device ID, which all backups of a device share.
+     */
+    private static String backupKey(ITunesBackup backup) {
+        String path;
+        try {
+            path = backup.directory.getCanonicalPath();
+        } catch (IOException e) {
+            path = backup.directory.getAbsolutePath();
+        }
+        return backup.manifestDBFile.length() + " " + backup.manifestDBFile.lastModified() + " " + path;
+    }
+
+    private void read(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(" ");
+            try {
+                if (parts.length == 2 && parts[0].equals("S")) {
+                    this.started.add(parts[1]);
+                } else if (parts.length == 2 && parts[0].equals("A")) {
+                    this.started.remove(parts[1]);
+                } else if (parts.length == 3 && parts[0].equals("D")) {
+                    this.completed.put(parts[1], Long.parseLong(parts[2]));
+                }
+            } catch (NumberFormatException ignored) {
+                // Cut off by a crash, the file is extracted again
+            }
+        }
+    }
+
+    /**
+     * @return Whether the file was completely extracted to the destination before
+     */
+    boolean isComplete(String fileID, File destination) {
+        Long length = this.completed.get(fileID);
+        return length != null && destination.isFile() && destination.length() == length;
+    }
+
+    /**
+     * @return Whether an earlier run of this export started to extract the file,
+     * so whatever is at its destination was written by the export and can be replaced
+     */
+    boolean wasStarted(String fileID) {
+        return this.started.contains(fileID) || this.completed.containsKey(fileID);
+    }
+
+    synchronized void start(String fileID) {
+        this.writeLine("S " + fileID);
+    }
+
+    /**
+     * Records that a started file did not get its destination, because something else was put there in the meantime
+     * or the extraction failed. Whatever is at the destination must not be replaced by a resumed export then.
+     */
+    synchronized void abandon(String fileID) {
+        this.writeLine("A " + fileID);
+    }
+
+    synchronized void complete(String fileID, long length) {
+        this.writeLine("D " + fileID + " " + length);
+    }
+
+    private void writeLine(String line) {
+        if (this.writer == null) return;
+        try {
+            this.writer.write(line);
+            this.writer.write('\n');
+            this.writer.flush();
+        } catch (IOException e) {
+            System.out.println("Export journal " + this.file.getAbsolutePath() + " could not be written, the export can't be resumed: " + e.getMessage());
+            this.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.writer == null) return;
+        try {
+            this.writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.writer = null;
+    }
+}
@@ -0,0 +1,150 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks extracted files right after they were written, while their content is still in the page cache.
+ * The size of each output is compared with the size in the database, and if the database has a digest of the file,
+ * the content in the backup is hashed and compared with it.
+ * Mismatches are collected and written to a tab-separated report in the destination folder.
+ */
+public class ExportVerification {
+    public static final String REPORT_FILE_NAME = "export-verification.tsv";
+    private static final String REPORT_HEADER = "kind\tfileID\tdomain\tpath\texpected\tactual";
+
+    private final List<Mismatch> mismatches = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong digestsChecked = new AtomicLong();
+    private File report;
+
+    ExportVerification() {
+    }
+
+    /**
+     * Called from the worker thread which extracted the file
+     */
+    void verify(BackupFile file, File output) {
+        try {
+            long length = Files.size(output.toPath());
+            if (length != file.getSize())
+                this.add(new Mismatch(Kind.SIZE, file, Long.toString(file.getSize()), Long.toString(length)));
+
+            byte[] expectedDigest = file.getDigest();
+            // Only SHA-1 digests of the content in the backup can be checked
+            if (expectedDigest != null && expectedDigest.length == 20) {
+                byte[] digest = file.calcFileDigest();
+                this.digestsChecked.incrementAndGet();
+                if (!Arrays.equals(digest, expectedDigest))
+                    this.add(new Mismatch(Kind.DIGEST, file, HexFormat.of().formatHex(expectedDigest), HexFormat.of().formatHex(digest)));
+            }
+        } catch (IOException | UnsupportedCryptoException | RuntimeException e) {
+            this.add(new Mismatch(Kind.UNREADABLE, file, "", String.valueOf(e.getMessage())));
+        }
+        this.verified.incrementAndGet();
+    }
+
+    private void add(Mismatch mismatch) {
+        System.out.println("Verification failed (" + mismatch.kind + ") for '" + mismatch.file.domain + ":" + mismatch.file.relativePath
+                + "': expected " + mismatch.expected + ", but got " + mismatch.actual);
+        this.mismatches.add(mismatch);
+    }
+
+    /**
+     * Writes all mismatches to the report, replacing the report of an earlier export to the folder.
+     * The report only has the header line if everything matched. Mismatches are sorted by file ID.
+     */
+    void writeReport(File folder) throws IOException {
+        File file = new File(folder, REPORT_FILE_NAME);
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(REPORT_HEADER);
+            writer.write('\n');
+            List<Mismatch> sorted = this.getMismatches();
+            sorted.sort(Comparator.comparing((Mismatch mismatch) -> mismatch.file.fileID).thenComparing(mismatch -> mismatch.kind));
+            for (Mismatch mismatch : sorted) {
+                writer.write(String.join("\t",
+                        mismatch.kind.name(),
+                        mismatch.file.fileID,
+                        escape(mismatch.file.domain),
+                        escape(mismatch.file.relativePath),
+                        escape(mismatch.expected),
+                        escape(mismatch.actual)));
+                writer.write('\n');
+            }
+        }
+        this.report = file;
+    }
+
+    /**
+     * Backslashes, tabs and line breaks are escaped, so every mismatch is exactly one line with six columns
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * @return The number of files which were checked. Files skipped because an earlier run extracted them are not checked.
+     */
+    public long getVerified() {
+        return this.verified.get();
+    }
+
+    /**
+     * @return The number of files whose content in the backup was compared with its digest
+     */
+    public long getDigestsChecked() {
+        return this.digestsChecked.get();
+    }
+
+    public List<Mismatch> getMismatches() {
+        synchronized (this.mismatches) {
+            return new ArrayList<>(this.mismatches);
+        }
+    }
+
+    /**
+     * @return The written report, or null if it could not be written
+     */
+    public File getReport() {
+        return this.report;
+    }
+
+    public enum Kind {
+        /**
+         * The extracted file does not have the size in the database
+         */
+        SIZE,
+        /**
+         * The content in the backup does not match the digest in the database
+         */
+        DIGEST,
+        /**
+         * The extracted file or the content in the backup could not be read for checking
+         */
+        UNREADABLE
+    }
+
+    public static class Mismatch {
+        public final Kind kind;
+        public final BackupFile file;
+        public final String expected;
+        public final String actual;
+
+        Mismatch(Kind kind, BackupFile file, String expected, String actual) {
+            this.kind = kind;
+            this.file = file;
+            this.expected = expected;
+            this.actual = actual;
+        }
+    }
+}
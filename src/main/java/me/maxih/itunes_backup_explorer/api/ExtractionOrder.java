@@ -0,0 +1,59 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Decides in which order the content files are read during an export.
+ * Queries return files sorted by domain and path, which jumps randomly across the 256 shard directories
+ * of the content store. Reading them in storage order is much faster on spinning disks and network shares.
+ */
+@FunctionalInterface
+public interface ExtractionOrder {
+
+    /**
+     * Keeps the order of the query
+     */
+    ExtractionOrder AS_GIVEN = files -> files;
+
+    /**
+     * Sorts by file ID, so the shard directories and the files in them are read one after another
+     */
+    ExtractionOrder FILE_ID = files -> {
+        List<BackupFile> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(file -> file.fileID));
+        return sorted;
+    };
+
+    /**
+     * Sorts by inode number, which most Unix file systems allocate close to the file's data.
+     * Falls back to {@link #FILE_ID} where inode numbers are not available, e.g. on Windows.
+     */
+    ExtractionOrder INODE = files -> {
+        Map<BackupFile, Long> inodes = new HashMap<>();
+        for (BackupFile file : files) {
+            if (file.getContentFile() == null) continue;
+            try {
+                Object inode = Files.getAttribute(file.getContentFile().toPath(), "unix:ino");
+                if (inode instanceof Long) inodes.put(file, (Long) inode);
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                return FILE_ID.order(files);
+            } catch (IOException e) {
+                // Sorted to the end by file ID
+            }
+        }
+
+        List<BackupFile> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.<BackupFile, Long>comparing(file -> inodes.getOrDefault(file, Long.MAX_VALUE))
+                .thenComparing(file -> file.fileID));
+        return sorted;
+    };
+
+    /**
+     * @param files The files to export, in the order of the query
+     * @return The files in the order they should be extracted
+     */
+    List<BackupFile> order(List<BackupFile> files);
+
+}
@@ -0,0 +1,424 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts many backup files in parallel.
+ * Decrypting is bound by AES, so encrypted files are extracted on a pool with at most one thread per processor.
+ * Unencrypted files only have to be copied and are extracted on a separate pool for blocking I/O,
+ * so waiting for the disk never holds up decryption and vice versa.
+ * All directories are created in order before any file is written into them.
+ * Each file is written under a temporary name and renamed when it is complete, and a journal in the destination
+ * keeps track of finished files, so an interrupted extraction can simply be started again and skips them.
+ * Optionally, each file is verified by the worker that extracted it, see {@link ExportVerification}.
+ * An extractor can only be used once.
+ */
+public class FileExtractor {
+    // Copying waits for the disk, so it benefits from a few threads even on small machines
+    public static final int DEFAULT_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private final int cpuThreads;
+    private final int ioThreads;
+
+    private ProgressListener progressListener = (filesDone, filesTotal, bytesDone, bytesTotal) -> {
+    };
+    private ExtractionOrder order = ExtractionOrder.FILE_ID;
+    private ContentCopyMode copyMode = ContentCopyMode.TRANSFER;
+    private ErrorHandler errorHandler = (file, exception) -> {
+        exception.printStackTrace();
+        return Decision.CONTINUE;
+    };
+
+    private volatile boolean cancelled = false;
+    private boolean started = false;
+    private ExecutorService cpuPool;
+    private ExecutorService ioPool;
+    private ExportJournal journal;
+    private ExportVerification verification;
+
+    private final Object errorLock = new Object();
+    // Destinations taken by a file of this extraction, so two files with the same destination can't overwrite each other
+    private final Set<Path> claimed = ConcurrentHashMap.newKeySet();
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long resumed;
+    private long filesTotal;
+    private long bytesTotal;
+
+    public FileExtractor() {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * @param threads Number of threads for copying, which also limits the number of threads for decrypting
+     */
+    public FileExtractor(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("At least one thread is needed");
+        this.ioThreads = threads;
+        this.cpuThreads = Math.min(threads, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The listener is called from the worker threads after each extracted file.
+     */
+    public FileExtractor setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Sets the order in which the files are handed to the workers. Files are sorted by ID by default.
+     */
+    public FileExtractor setOrder(ExtractionOrder order) {
+        this.order = order;
+        return this;
+    }
+
+    /**
+     * Sets how unencrypted files are copied. They are transferred by the kernel by default.
+     */
+    public FileExtractor setCopyMode(ContentCopyMode copyMode) {
+        this.copyMode = copyMode;
+        return this;
+    }
+
+    /**
+     * Enables checking each extracted file against the size and digest in the database.
+     * Mismatches are reported in the result and written to {@link ExportVerification#REPORT_FILE_NAME} in the destination folder.
+     */
+    public FileExtractor setVerify(boolean verify) {
+        this.verification = verify ? new ExportVerification() : null;
+        return this;
+    }
+
+    /**
+     * The handler is called from the worker threads, but never for two errors at the same time,
+     * so it can safely ask the user what to do. Other workers keep going in the meantime.
+     */
+    public FileExtractor setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+        return this;
+    }
+
+    /**
+     * Extracts the given files and waits until all of them are done.
+     *
+     * @param files             The files to extract. Directories are created, symbolic links are skipped.
+     * @param destinationFolder The folder to extract the files to
+     * @param withRelativePath  Whether the domain and relative path should be kept below the folder
+     * @throws InterruptedException if the calling thread was interrupted, which cancels the extraction
+     */
+    public Result extract(Collection<BackupFile> files, File destinationFolder, boolean withRelativePath) throws InterruptedException {
+        synchronized (this) {
+            if (this.started) throw new IllegalStateException("Extractor was already used");
+            this.started = true;
+        }
+
+        if (files.isEmpty()) return this.getResult();
+
+        try {
+            Files.createDirectories(destinationFolder.toPath());
+        } catch (IOException e) {
+            this.fail(files.iterator().next(), e);
+            return this.getResult();
+        }
+        this.journal = new ExportJournal(destinationFolder, files.iterator().next().backup);
+
+        try {
+            return this.extract(files, destinationFolder, withRelativePath, this.journal);
+        } finally {
+            this.journal.close();
+            if (this.verification != null) {
+                try {
+                    this.verification.writeReport(destinationFolder);
+                } catch (IOException e) {
+                    System.out.println("Verification report could not be written: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private Result extract(Collection<BackupFile> files, File destinationFolder, boolean withRelativePath, ExportJournal journal) throws InterruptedException {
+        // Sorted, so parents are created before their children
+        Map<Path, BackupFile> directories = new TreeMap<>();
+        List<Job> jobs = new ArrayList<>(files.size());
+        long resumedBytes = 0;
+
+        for (BackupFile file : this.order.order(new ArrayList<>(files))) {
+            if (this.cancelled) return this.getResult();
+
+            File destination;
+            try {
+                destination = file.getExtractionDestination(destinationFolder, withRelativePath);
+            } catch (IOException e) {
+                this.fail(file, e);
+                continue;
+            }
+
+            switch (file.getFileType()) {
+                case DIRECTORY:
+                    directories.putIfAbsent(destination.toPath(), file);
+                    break;
+                case FILE:
+                    this.bytesTotal += file.getSize();
+                    if (journal.isComplete(file.fileID, destination)) {
+                        this.resumed++;
+                        resumedBytes += file.getSize();
+                        break;
+                    }
+                    directories.putIfAbsent(destination.getParentFile().toPath(), file);
+                    jobs.add(new Job(file, destination));
+                    break;
+                case SYMBOLIC_LINK:
+                    System.out.println("Skipping symbolic link '" + file.domain + ":" + file.relativePath + "'");
+                    this.skipped.incrementAndGet();
+                    break;
+            }
+        }
+        this.filesTotal = jobs.size() + this.resumed;
+        this.filesDone.set(this.resumed);
+        this.bytesDone.set(resumedBytes);
+        if (this.resumed > 0) {
+            System.out.println("Resuming extraction, " + this.resumed + " files were already extracted");
+            this.progressListener.progress(this.resumed, this.filesTotal, resumedBytes, this.bytesTotal);
+        }
+
+        for (Map.Entry<Path, BackupFile> directory : directories.entrySet()) {
+            if (this.cancelled) return this.getResult();
+            try {
+                Files.createDirectories(directory.getKey());
+            } catch (IOException e) {
+                this.fail(directory.getValue(), e);
+            }
+        }
+
+        this.cpuPool = Executors.newFixedThreadPool(this.cpuThreads, runnable -> newWorker(runnable, "extract-cpu"));
+        this.ioPool = Executors.newFixedThreadPool(this.ioThreads, runnable -> newWorker(runnable, "extract-io"));
+
+        // Limits the number of queued jobs, so cancelling doesn't have to drain a huge queue
+        Semaphore inFlight = new Semaphore(2 * (this.cpuThreads + this.ioThreads));
+
+        try {
+            for (Job job : jobs) {
+                inFlight.acquire();
+                if (this.cancelled) {
+                    inFlight.release();
+                    break;
+                }
+
+                ExecutorService pool = job.file.isEncrypted() ? this.cpuPool : this.ioPool;
+                try {
+                    pool.execute(() -> {
+                        try {
+                            this.extract(job);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Cancelled in the meantime
+                    break;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            this.cancel();
+            throw e;
+        } finally {
+            this.cpuPool.shutdown();
+            this.ioPool.shutdown();
+            this.awaitWorkers();
+        }
+
+        return this.getResult();
+    }
+
+    /**
+     * Waits until all workers are done, also after cancelling, so no file or journal line is written
+     * after the journal is closed and the report is written. Being interrupted doesn't stop the waiting.
+     */
+    private void awaitWorkers() {
+        boolean interrupted = false;
+        for (ExecutorService pool : List.of(this.cpuPool, this.ioPool)) {
+            while (true) {
+                try {
+                    if (pool.awaitTermination(1, TimeUnit.SECONDS)) break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void extract(Job job) {
+        if (this.cancelled) return;
+
+        Path destination = job.destination.toPath();
+        Path tempFile = destination.resolveSibling(".export-" + job.file.fileID + ".part");
+        Path claim = destination.toAbsolutePath().normalize();
+        boolean claimedDestination = false;
+        boolean started = false;
+        boolean moved = false;
+        try {
+            if (!this.claimed.add(claim)) throw new FileAlreadyExistsException(destination.toString());
+            claimedDestination = true;
+
+            if (this.journal.wasStarted(job.file.fileID)) {
+                // Left behind by an interrupted run of this extraction
+                Files.deleteIfExists(tempFile);
+                Files.deleteIfExists(destination);
+            } else if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(destination.toString());
+            }
+
+            // Recorded first, so a resumed run knows that the temporary file is its own
+            this.journal.start(job.file.fileID);
+            started = true;
+
+            // Only complete files ever have the final name. Without REPLACE_EXISTING, the move fails
+            // instead of overwriting a file which was put there in the meantime.
+            job.file.extract(tempFile.toFile(), this.copyMode);
+            Files.move(tempFile, destination);
+            moved = true;
+            this.journal.complete(job.file.fileID, Files.size(destination));
+
+            // Right away, so the content doesn't have to be read from disk again
+            if (this.verification != null) this.verification.verify(job.file, job.destination);
+
+            this.progressListener.progress(this.filesDone.incrementAndGet(), this.filesTotal,
+                    this.bytesDone.addAndGet(job.file.getSize()), this.bytesTotal);
+        } catch (Exception e) {
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e1) {
+                System.out.println("Could not delete temporary file " + tempFile);
+            }
+            if (moved && !job.destination.delete())
+                System.out.println("Could not delete incomplete file " + job.destination.getAbsolutePath());
+            // Whatever is at the destination now was not written by this file
+            if (started && !moved) this.journal.abandon(job.file.fileID);
+            if (claimedDestination && !moved) this.claimed.remove(claim);
+
+            if (this.cancelled) return;
+            if (e instanceof FileAlreadyExistsException) this.skipped.incrementAndGet();
+            else this.failed.incrementAndGet();
+            this.handleError(job.file, e);
+        }
+    }
+
+    private void fail(BackupFile file, Exception e) {
+        this.failed.incrementAndGet();
+        this.handleError(file, e);
+    }
+
+    private void handleError(BackupFile file, Exception e) {
+        Decision decision;
+        synchronized (this.errorLock) {
+            if (this.cancelled) return;
+            decision = this.errorHandler.handle(file, e);
+        }
+        if (decision == Decision.ABORT) this.cancel();
+    }
+
+    /**
+     * Stops the extraction. Files which are currently written are completed or deleted
+     * before {@link #extract} returns.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        if (this.cpuPool != null) this.cpuPool.shutdownNow();
+        if (this.ioPool != null) this.ioPool.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    private Result getResult() {
+        return new Result(this.filesDone.get() - this.resumed, this.resumed, this.skipped.get(), this.failed.get(), this.bytesDone.get(), this.cancelled, this.verification);
+    }
+
+    private static Thread newWorker(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static class Job {
+        final BackupFile file;
+        final File destination;
+
+        Job(BackupFile file, File destination) {
+            this.file = file;
+            this.destination = destination;
+        }
+    }
+
+    public enum Decision {
+        CONTINUE,
+        ABORT
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        void progress(long filesDone, long filesTotal, long bytesDone, long bytesTotal);
+    }
+
+    @FunctionalInterface
+    public interface ErrorHandler {
+        /**
+         * @param exception A {@link FileAlreadyExistsException} if the destination already exists,
+         *                  otherwise the reason the file could not be extracted
+         * @return Whether to continue with the remaining files
+         */
+        Decision handle(BackupFile file, Exception exception);
+    }
+
+    public static class Result {
+        public final long extracted;
+        /**
+         * Files which were already extracted by an earlier, interrupted run
+         */
+        public final long resumed;
+        public final long skipped;
+        public final long failed;
+        public final long bytes;
+        public final boolean cancelled;
+        /**
+         * The checks of the extracted files, or null if they were not verified
+         */
+        public final ExportVerification verification;
+
+        Result(long extracted, long resumed, long skipped, long failed, long bytes, boolean cancelled, ExportVerification verification) {
+            this.extracted = extracted;
+            this.resumed = resumed;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.cancelled = cancelled;
+            this.verification = verification;
+        }
+    }
+
+}
@@ -2,42 +2,115 @@ package me.maxih.itunes_backup_explorer.api;
 
 import com.dd.plist.BinaryPropertyListWriter;
 import com.dd.plist.NSDictionary;
-import com.dd.plist.PropertyListFormatException;
 import com.dd.plist.PropertyListParser;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.security.InvalidKeyException;
 import java.sql.*;
-import java.text.ParseException;
 import java.util.Date;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ITunesBackup {
+    private static final long MMAP_SIZE = 256L * 1024 * 1024;
+    // Negative values are interpreted as KiB by SQLite
+    private static final int CACHE_SIZE = -64 * 1024;
+    private static final int STATEMENT_CACHE_SIZE = 16;
+
+    private static final int DISCOVERY_THREADS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
     public static List<ITunesBackup> getBackups(File backupRoot) {
-        if (!backupRoot.isDirectory()) return new ArrayList<>();
+        return getBackups(List.of(backupRoot), backup -> {});
+    }
 
-        File[] backupDirectories = backupRoot.listFiles(File::isDirectory);
+    /**
+     * Loads all backups in the given backup roots in parallel.
+     * @param backupRoots Directories containing backup directories
+     * @param loadedCallback Called on the calling thread with each backup as soon as it has been loaded
+     * @return All backups that could be loaded, most recent first
+     */
+    public static List<ITunesBackup> getBackups(Collection<File> backupRoots, Consumer<ITunesBackup> loadedCallback) {
+        return getBackups(backupRoots, loadedCallback, (directory, exception) -> exception.printStackTrace());
+    }
 
-        return Arrays
-                .stream(Objects.requireNonNullElse(backupDirectories, new File[0]))
-                .map(dir -> {
+    /**
+     * Loads all backups in the given backup roots in parallel.
+     * Directories without Manifest.plist and Manifest.db are not considered backups and are skipped silently.
+     * @param backupRoots Directories containing backup directories
+     * @param loadedCallback Called on the calling thread with each backup as soon as it has been loaded
+     * @param errorCallback Called on the calling thread with the directory of each backup that could not be loaded
+     * @return All backups that could be loaded, most recent first
+     */
+    public static List<ITunesBackup> getBackups(Collection<File> backupRoots, Consumer<ITunesBackup> loadedCallback,
+                                                BiConsumer<File, Exception> errorCallback) {
+        List<File> backupDirectories = getBackupDirectories(backupRoots);
+
+        List<ITunesBackup> backups = new ArrayList<>(backupDirectories.size());
+        if (backupDirectories.isEmpty()) return backups;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(DISCOVERY_THREADS, backupDirectories.size()), runnable -> {
+            Thread thread = new Thread(runnable, "backup-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<ITunesBackup> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<ITunesBackup>, File> directories = new HashMap<>();
+
+        try {
+            for (File dir : backupDirectories) {
+                directories.put(completionService.submit(() -> {
                     try {
                         return new ITunesBackup(dir);
                     } catch (FileNotFoundException e) {
-                        return null;
-                    } catch (BackupReadException e) {
-                        e.printStackTrace();
+                        // Only an error if the directory is an incomplete backup
+                        if (new File(dir, "Manifest.plist").exists() || new File(dir, "Manifest.db").exists()) throw e;
                         return null;
                     }
-                })
+                }), dir);
+            }
+
+            for (int i = 0; i < backupDirectories.size(); i++) {
+                Future<ITunesBackup> future = completionService.take();
+                ITunesBackup backup;
+                try {
+                    backup = future.get();
+                } catch (ExecutionException e) {
+                    errorCallback.accept(directories.get(future), e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                    continue;
+                }
+                if (backup == null) continue;
+
+                backups.add(backup);
+                loadedCallback.accept(backup);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        backups.sort(Comparator.<ITunesBackup, Date>comparing(backup -> backup.manifest.date).reversed());
+        return backups;
+    }
+
+    /**
+     * @return All directories in the given backup roots that might contain a backup
+     */
+    public static List<File> getBackupDirectories(Collection<File> backupRoots) {
+        return backupRoots.stream()
+                .filter(File::isDirectory)
+                .map(root -> root.listFiles(File::isDirectory))
                 .filter(Objects::nonNull)
-                .sorted(Comparator.<ITunesBackup, Date>comparing(backup -> backup.manifest.date).reversed())
+                .flatMap(Arrays::stream)
                 .collect(Collectors.toList());
     }
 
@@ -53,6 +126,17 @@ public class ITunesBackup {
 
     public File decryptedDatabaseFile;
     private Connection databaseCon;
+    private boolean databaseReadOnly;
+    private final Set<ManifestIndex.Kind> attachedIndexes = EnumSet.noneOf(ManifestIndex.Kind.class);
+    private final ManifestIndex searchIndex;
+    private boolean searchIndexEnabled = true;
+    private final AtomicBoolean searchIndexBuilding = new AtomicBoolean(false);
+    private int fetchSize = 0;
+
+    // Prepared statements by SQL which are currently not in use, least recently used first
+    private final Map<String, PreparedStatement> statementCache = new LinkedHashMap<>(STATEMENT_CACHE_SIZE, 0.75f, true);
+    // Statements which were acquired and not released yet, e.g. by open streams
+    private int statementsInUse = 0;
 
     public ITunesBackup(File directory) throws FileNotFoundException, BackupReadException {
         if (!directory.exists()) throw new FileNotFoundException(directory.getAbsolutePath());
@@ -81,6 +165,8 @@ public class ITunesBackup {
             throw new BackupReadException("Backup is encrypted but no key bag was found");
 
         if (!this.manifest.encrypted) this.decryptedDatabaseFile = this.manifestDBFile;
+
+        this.searchIndex = new ManifestIndex(this, ManifestIndex.Kind.SEARCH);
     }
 
     private void loadManifest() throws BackupReadException {
@@ -94,12 +180,7 @@ public class ITunesBackup {
     }
 
     private void loadInfo() throws BackupReadException {
-        try {
-            NSDictionary pList = (NSDictionary) PropertyListParser.parse(backupInfoFile);
-            this.backupInfo = new BackupInfo(pList);
-        } catch (Exception e) {
-            throw new BackupReadException(e);
-        }
+        this.backupInfo = BackupInfo.read(backupInfoFile);
     }
 
     public Optional<BackupInfo> getBackupInfo() {
@@ -115,12 +196,21 @@ public class ITunesBackup {
     public void decryptDatabase() throws BackupReadException, IOException, UnsupportedCryptoException, NotUnlockedException {
         if (!this.manifest.encrypted || this.manifest.getKeyBag().isEmpty()) return;
 
+        File cached = DecryptedManifestCache.acquire(this);
+        if (cached != null) {
+            this.decryptedDatabaseFile = cached;
+            System.out.println("Reusing decrypted database of '" + this.manifest.deviceName + "'");
+            return;
+        }
+
         try {
             this.decryptedDatabaseFile = File.createTempFile("decrypted-manifest", ".sqlite3");
             this.manifest.getKeyBag().get().decryptFile(manifest.protectionClass, manifest.getManifestKey().orElseThrow(), this.manifestDBFile, this.decryptedDatabaseFile);
         } catch (FileNotFoundException | InvalidKeyException e) {
             throw new BackupReadException(e);
         }
+
+        DecryptedManifestCache.put(this, this.decryptedDatabaseFile);
     }
 
     public void reEncryptDatabase() throws IOException, BackupReadException, DatabaseConnectionException, UnsupportedCryptoException, NotUnlockedException {
@@ -139,14 +229,8 @@ public class ITunesBackup {
         while (new File(dir, backupName + ".bak").exists()) backupName = "Manifest.db." + (++i);
         Files.copy(this.manifestDBFile.toPath(), new File(dir, backupName + ".bak").toPath());
 
-        if (this.databaseConnected()) {
-            try {
-                this.databaseCon.close();
-                this.databaseCon = null;
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-        }
+        // The changes are committed already, so queries which are still reading can keep the connection
+        this.closeDatabaseIfUnused();
 
         try {
             this.manifest.getKeyBag().get().encryptFile(manifest.protectionClass, manifest.getManifestKey().orElseThrow(), this.decryptedDatabaseFile, this.manifestDBFile);
@@ -154,6 +238,7 @@ public class ITunesBackup {
             throw new BackupReadException(e);
         }
 
+        DecryptedManifestCache.update(this, this.decryptedDatabaseFile);
         connectToDatabase();
     }
 
@@ -167,74 +252,271 @@ public class ITunesBackup {
         }
     }
 
+    /**
+     * Opens a read-only connection to the database if there is no connection yet.
+     * @throws DatabaseConnectionException if the database connection failed
+     */
     public void connectToDatabase() throws DatabaseConnectionException {
         if (databaseConnected()) return;
+        this.connectToDatabase(true);
+    }
+
+    /**
+     * Connects to the database in the requested mode, reconnecting if the current connection is read-only
+     * but write access is needed.
+     * Read-only connections never lock the database and can be used on read-only file systems.
+     * @param readOnly Whether the connection is only used for queries
+     * @throws DatabaseConnectionException if the database connection failed,
+     *                                     or write access is needed while other queries are still reading
+     */
+    public synchronized void connectToDatabase(boolean readOnly) throws DatabaseConnectionException {
+        if (databaseConnected()) {
+            if (readOnly || !this.databaseReadOnly) return;
+            // Reconnecting would break the queries which are still reading from the connection
+            if (this.statementsInUse > 0)
+                throw new DatabaseConnectionException("The backup database is still being read, e.g. by an export. Please try again when it is finished.");
+            this.closeDatabase();
+        }
 
         if (this.decryptedDatabaseFile == null || !this.decryptedDatabaseFile.exists())
             throw new DatabaseConnectionException();
 
         try {
-            databaseCon = DriverManager.getConnection("jdbc:sqlite:" + decryptedDatabaseFile.getCanonicalPath());
-            System.out.println("Connection to the backup database of '" + this.manifest.deviceName + "' has been established.");
+            File file = decryptedDatabaseFile.getCanonicalFile();
+            if (readOnly) {
+                // The original Manifest.db of unencrypted backups is not changed by anyone else while browsing
+                String uriParameters = this.manifest.encrypted ? "?mode=ro" : "?mode=ro&immutable=1";
+                databaseCon = DriverManager.getConnection("jdbc:sqlite:" + file.toURI() + uriParameters);
+            } else {
+                databaseCon = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+            }
+            this.databaseReadOnly = readOnly;
+
+            try (Statement pragmas = databaseCon.createStatement()) {
+                pragmas.execute("PRAGMA mmap_size = " + MMAP_SIZE);
+                pragmas.execute("PRAGMA cache_size = " + CACHE_SIZE);
+                pragmas.execute("PRAGMA query_only = " + (readOnly ? "ON" : "OFF"));
+            }
+
+            System.out.println("Connection to the backup database of '" + this.manifest.deviceName + "' has been established"
+                    + (readOnly ? " (read-only)." : "."));
         } catch (SQLException | IOException e) {
             throw new DatabaseConnectionException(e);
         }
     }
 
+    /**
+     * Closes all cached statements and the database connection, if it is open.
+     */
+    public synchronized void closeDatabase() {
+        this.closeCachedStatements();
+
+        try {
+            if (this.databaseCon != null && !this.databaseCon.isClosed())
+                this.databaseCon.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        this.databaseCon = null;
+        this.attachedIndexes.clear();
+    }
+
+    private synchronized void closeDatabaseIfUnused() {
+        if (this.statementsInUse == 0) this.closeDatabase();
+    }
+
+    private synchronized void closeCachedStatements() {
+        for (PreparedStatement statement : this.statementCache.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        this.statementCache.clear();
+    }
+
     public void cleanUp() {
+        this.closeDatabase();
+        // Contains decrypted paths, which must not stay on disk
+        if (this.manifest.encrypted) this.searchIndex.delete();
+
         if (!this.manifest.encrypted
                 || this.decryptedDatabaseFile == null
                 || !this.decryptedDatabaseFile.exists()
                 || this.decryptedDatabaseFile == this.manifestDBFile) return;
 
+        // Kept for the rest of the session in case the backup is opened again
+        DecryptedManifestCache.release(this.decryptedDatabaseFile);
+        this.decryptedDatabaseFile = null;
+    }
+
+    /**
+     * Takes a prepared statement for the given SQL from the cache or prepares a new one.
+     * It must be handed back with {@link #releaseStatement(String, PreparedStatement)} after use.
+     */
+    private synchronized PreparedStatement acquireStatement(String sql) throws SQLException {
+        PreparedStatement statement = this.statementCache.remove(sql);
+        if (statement == null || statement.isClosed()) statement = this.databaseCon.prepareStatement(sql);
+        this.statementsInUse++;
+        return statement;
+    }
+
+    private synchronized void releaseStatement(String sql, PreparedStatement statement) {
+        this.statementsInUse--;
         try {
-            if (databaseCon != null && !databaseCon.isClosed())
-                this.databaseCon.close();
+            if (statement.isClosed()) return;
+
+            // Statements of a previous connection or duplicates of a statement in use are not kept
+            if (statement.getConnection() != this.databaseCon || this.statementCache.containsKey(sql)) {
+                statement.close();
+                return;
+            }
+
+            statement.clearParameters();
+            this.statementCache.put(sql, statement);
+
+            if (this.statementCache.size() > STATEMENT_CACHE_SIZE) {
+                Iterator<PreparedStatement> eldest = this.statementCache.values().iterator();
+                eldest.next().close();
+                eldest.remove();
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * Sets the number of rows the database driver should fetch at once for streamed queries.
+     * @param fetchSize The number of rows, or 0 to let the driver decide
+     */
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize < 0) throw new IllegalArgumentException("Fetch size must not be negative");
+        this.fetchSize = fetchSize;
+    }
+
+    private BackupFile readFileRow(ResultSet result, boolean requireContent) throws SQLException {
+        try {
+            return new BackupFile(
+                    this,
+                    result.getString(1),
+                    result.getString(2),
+                    result.getString(3),
+                    result.getInt(4),
+                    result.getBytes(5),
+                    requireContent
+            );
+        } catch (BackupReadException e) {
+            System.err.println(e.getMessage());
+        }
+        return null;
+    }
 
-        if (!this.decryptedDatabaseFile.delete())
-            System.out.println("Could not delete temporary file " + this.decryptedDatabaseFile.getAbsolutePath());
+    /**
+     * Runs a file query and returns a stream that reads and parses the rows lazily while it is consumed.
+     * The stream holds an open statement and must be closed, e.g. in a try-with-resources block.
+     */
+    private Stream<BackupFile> streamFiles(String sql, StatementPreparation preparation) throws DatabaseConnectionException {
+        return this.streamFiles(sql, preparation, true);
     }
 
-    private List<BackupFile> queryFiles(String sql, StatementPreparation preparation) throws DatabaseConnectionException {
+    /**
+     * @param requireContent Whether files whose content file is missing are left out
+     */
+    private Stream<BackupFile> streamFiles(String sql, StatementPreparation preparation, boolean requireContent) throws DatabaseConnectionException {
         if (!databaseConnected()) this.connectToDatabase();
 
+        PreparedStatement statement;
+        ResultSet result;
         try {
-            PreparedStatement statement = this.databaseCon.prepareStatement(sql);
-            preparation.prepare(statement);
+            statement = this.acquireStatement(sql);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return Stream.empty();
+        }
 
-            ResultSet result = statement.executeQuery();
+        try {
+            statement.setFetchSize(this.fetchSize);
+            preparation.prepare(statement);
+            result = statement.executeQuery();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            this.releaseStatement(sql, statement);
+            return Stream.empty();
+        }
 
-            List<BackupFile> backupFiles = new ArrayList<>();
-            while (result.next()) {
+        Spliterator<BackupFile> rows = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super BackupFile> action) {
                 try {
-                    backupFiles.add(new BackupFile(
-                            this,
-                            result.getString(1),
-                            result.getString(2),
-                            result.getString(3),
-                            result.getInt(4),
-                            (NSDictionary) PropertyListParser.parse(result.getBinaryStream(5))
-                    ));
-                } catch (BackupReadException e) {
-                    System.err.println(e.getMessage());
-                } catch (IOException | PropertyListFormatException | ParseException | ParserConfigurationException |
-                         SAXException e) {
+                    while (result.next()) {
+                        BackupFile file = readFileRow(result, requireContent);
+                        if (file != null) {
+                            action.accept(file);
+                            return true;
+                        }
+                    }
+                } catch (SQLException e) {
                     e.printStackTrace();
                 }
+                return false;
             }
+        };
 
-            return backupFiles;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return new ArrayList<>(0);
+        return StreamSupport.stream(rows, false).onClose(() -> {
+            try {
+                result.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            this.releaseStatement(sql, statement);
+        });
+    }
+
+    private List<BackupFile> queryFiles(String sql, StatementPreparation preparation) throws DatabaseConnectionException {
+        try (Stream<BackupFile> files = this.streamFiles(sql, preparation)) {
+            return files.collect(Collectors.toCollection(ArrayList::new));
         }
     }
 
     public List<BackupFile> searchFiles(String domainLike, String relativePathLike) throws DatabaseConnectionException {
-        return this.queryFiles(
+        try (Stream<BackupFile> files = this.streamSearchFiles(domainLike, relativePathLike)) {
+            return files.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    /**
+     * Like {@link #searchFiles(String, String)}, but reads the rows lazily.
+     * The returned stream must be closed after use.
+     */
+    public Stream<BackupFile> streamSearchFiles(String domainLike, String relativePathLike) throws DatabaseConnectionException {
+        // The full-text index can't be used with an ESCAPE clause
+        if (this.searchIndexEnabled && !relativePathLike.contains("\\") && this.useManifestIndex(this.searchIndex)) {
+            List<String> conditions = new ArrayList<>(2);
+            List<String> patterns = new ArrayList<>(2);
+            // Patterns that match everything are left out, as they would make FTS5 scan the whole table
+            if (!matchesEverything(domainLike)) {
+                conditions.add("s.`domain` LIKE ?");
+                patterns.add(domainLike);
+            }
+            if (!matchesEverything(relativePathLike)) {
+                conditions.add("s.`relativePath` LIKE ?");
+                patterns.add(relativePathLike);
+            }
+
+            return this.streamFiles(
+                    "SELECT f.* FROM " + ManifestIndex.Kind.SEARCH.schema + ".files_fts s JOIN files f ON f.`fileID` = s.`fileID`" +
+                            (conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions)) +
+                            " ORDER BY f.`flags`, f.`domain`, f.`relativePath`",
+                    statement -> {
+                        for (int i = 0; i < patterns.size(); i++) statement.setString(i + 1, patterns.get(i));
+                    }
+            );
+        }
+
+        this.prepareSearchIndex();
+
+        return this.streamFiles(
                 "SELECT * FROM files WHERE `domain` LIKE ? AND `relativePath` LIKE ? ESCAPE '\\' ORDER BY `flags`, `domain`, `relativePath`",
                 statement -> {
                     statement.setString(1, domainLike);
@@ -243,13 +525,58 @@ public class ITunesBackup {
         );
     }
 
+    private static boolean matchesEverything(String likePattern) {
+        return !likePattern.isEmpty() && likePattern.chars().allMatch(c -> c == '%');
+    }
+
+    /**
+     * Enables or disables the full-text index for file searches.
+     * If it is disabled, searches always scan the Files table.
+     */
+    public void setSearchIndexEnabled(boolean enabled) {
+        this.searchIndexEnabled = enabled;
+    }
+
+    /**
+     * Starts building the full-text search index in the background if it is enabled and missing or outdated.
+     * Until it is ready, searches fall back to scanning the Files table.
+     */
+    public void prepareSearchIndex() {
+        if (!this.searchIndexEnabled || this.searchIndex.isUpToDate()) return;
+        if (!this.searchIndexBuilding.compareAndSet(false, true)) return;
+
+        Thread thread = new Thread(() -> {
+            try {
+                this.searchIndex.build();
+            } catch (DatabaseConnectionException e) {
+                e.printStackTrace();
+                // e.g. no FTS5 support, don't try again with every search
+                this.searchIndexEnabled = false;
+            } finally {
+                this.searchIndexBuilding.set(false);
+            }
+        }, "search-index-" + this.directory.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     public List<BackupFile> queryDomainRoots() throws DatabaseConnectionException {
         return queryFiles("SELECT * FROM files WHERE `relativePath` = \"\" ORDER BY `domain`", statement -> {});
     }
 
     public List<BackupFile> queryDomainFiles(boolean withDomainRoot, String... domains) throws DatabaseConnectionException {
-        if (domains.length == 0) return new ArrayList<>(0);
-        return queryFiles(
+        try (Stream<BackupFile> files = this.streamDomainFiles(withDomainRoot, domains)) {
+            return files.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    /**
+     * Like {@link #queryDomainFiles(boolean, String...)}, but reads the rows lazily.
+     * The returned stream must be closed after use.
+     */
+    public Stream<BackupFile> streamDomainFiles(boolean withDomainRoot, String... domains) throws DatabaseConnectionException {
+        if (domains.length == 0) return Stream.empty();
+        return streamFiles(
                 "SELECT * FROM files " +
                         "WHERE `domain` IN (?" + ", ?".repeat(domains.length - 1) + ") " +
                         (withDomainRoot ? " " : "AND `relativePath` <> \"\" ") +
@@ -260,6 +587,23 @@ public class ITunesBackup {
         );
     }
 
+    /**
+     * Streams all files and folders of the backup in no specific order.
+     * The returned stream must be closed after use.
+     */
+    public Stream<BackupFile> streamAllFiles() throws DatabaseConnectionException {
+        return streamFiles("SELECT * FROM files", statement -> {
+        });
+    }
+
+    /**
+     * Like {@link #streamAllFiles()}, but also streams files whose content file is missing from the backup directory.
+     */
+    Stream<BackupFile> streamAllRecords() throws DatabaseConnectionException {
+        return streamFiles("SELECT * FROM files", statement -> {
+        }, false);
+    }
+
     /**
      * Queries all files and folders contained in a directory and any level of subdirectory of the backup.
      * @param domain The domain in which the directory is located
@@ -268,52 +612,108 @@ public class ITunesBackup {
      * @throws DatabaseConnectionException if the database connection failed
      */
     public List<BackupFile> queryAllChildren(String domain, String parentRelativePath) throws DatabaseConnectionException {
-        StringBuilder startsWithEscaped = new StringBuilder(
-                parentRelativePath
-                        .replace("!", "!!")
-                        .replace("%", "!%")
-                        .replace("_", "!_")
-                        .replace("[", "![")
-        );
-
-        // Relative paths don't start with a /, so the isEmpty check is needed for domain roots
-        if (!parentRelativePath.isEmpty() && !parentRelativePath.endsWith("/")) startsWithEscaped.append('/');
-
-        startsWithEscaped.append("_%");
+        try (Stream<BackupFile> files = this.streamAllChildren(domain, parentRelativePath)) {
+            return files.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
 
-        return queryFiles(
-                "SELECT * FROM files WHERE `domain` = ? AND `relativePath` LIKE ? ESCAPE '!'",
-                statement -> {
-                    statement.setString(1, domain);
-                    statement.setString(2, startsWithEscaped.toString());
-                }
-        );
+    /**
+     * Like {@link #queryAllChildren(String, String)}, but reads the rows lazily.
+     * The returned stream must be closed after use.
+     */
+    public Stream<BackupFile> streamAllChildren(String domain, String parentRelativePath) throws DatabaseConnectionException {
+        // Relative paths don't start with a /, so domain roots contain every non-empty path.
+        // Otherwise, all paths starting with "parent/" are sorted between "parent/" and "parent0", since '0' follows '/'.
+        String lowerBound = parentRelativePath.isEmpty() || parentRelativePath.endsWith("/")
+                ? parentRelativePath
+                : parentRelativePath + "/";
+        String upperBound = lowerBound.isEmpty() ? null : lowerBound.substring(0, lowerBound.length() - 1) + "0";
+
+        // The unary + keeps SQLite from preferring the domain index, so the range is read from FilesRelativePathIdx.
+        // Domain roots contain the whole domain, which the domain index is better for.
+        String sql = upperBound != null
+                ? "SELECT * FROM files WHERE +`domain` = ? AND `relativePath` > ? AND `relativePath` < ?"
+                : "SELECT * FROM files WHERE `domain` = ? AND `relativePath` > ?";
+
+        return streamFiles(sql, statement -> {
+            statement.setString(1, domain);
+            statement.setString(2, lowerBound);
+            if (upperBound != null) statement.setString(3, upperBound);
+        });
     }
 
-    @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
-    public void updateFileInfo(String fileID, NSDictionary data) throws DatabaseConnectionException {
+    /**
+     * Attaches a sidecar index database to the current connection if it is up-to-date.
+     * It is never built here, because that would block all queries of this backup for the whole build.
+     * @param index The sidecar to use
+     * @return false if queries have to fall back to the tables of Manifest.db
+     */
+    private synchronized boolean useManifestIndex(ManifestIndex index) throws DatabaseConnectionException {
         if (!databaseConnected()) this.connectToDatabase();
 
-        try {
-            PreparedStatement statement = this.databaseCon.prepareStatement("UPDATE Files SET file = ? WHERE fileID = ?");
-            byte[] plist = BinaryPropertyListWriter.writeToArray(data);
-            statement.setBytes(1, plist);
-            statement.setString(2, fileID);
-            statement.executeUpdate();
+        boolean attached = this.attachedIndexes.contains(index.getKind());
+        if (attached && index.isUpToDate()) return true;
+
+        // The sidecar is replaced when it is rebuilt, so the old one can't stay attached.
+        // Detaching isn't possible while statements are running, and the connection can't be closed either,
+        // so queries use Manifest.db until all of them are done.
+        if (attached && (this.statementsInUse > 0 || !this.detachManifestIndex(index.getKind()))) return false;
+
+        if (!index.isUpToDate()) return false;
+
+        try (PreparedStatement attach = this.databaseCon.prepareStatement("ATTACH DATABASE ? AS " + index.getKind().schema)) {
+            attach.setString(1, index.getFile().getCanonicalPath());
+            attach.execute();
+            this.attachedIndexes.add(index.getKind());
+            return true;
         } catch (SQLException | IOException e) {
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    private synchronized boolean detachManifestIndex(ManifestIndex.Kind kind) {
+        // Cached statements might still refer to the sidecar
+        this.closeCachedStatements();
+        try (Statement detach = this.databaseCon.createStatement()) {
+            detach.execute("DETACH DATABASE " + kind.schema);
+            this.attachedIndexes.remove(kind);
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
         }
     }
 
+    @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
+    public void updateFileInfo(String fileID, NSDictionary data) throws DatabaseConnectionException {
+        this.executeUpdate("UPDATE Files SET file = ? WHERE fileID = ?", statement -> {
+            try {
+                statement.setBytes(1, BinaryPropertyListWriter.writeToArray(data));
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            statement.setString(2, fileID);
+        });
+    }
+
     @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
     public void removeFileFromDatabase(String fileID) throws DatabaseConnectionException {
-        if (!databaseConnected()) this.connectToDatabase();
+        this.executeUpdate("DELETE FROM Files WHERE fileID = ?", statement -> statement.setString(1, fileID));
+    }
+
+    private void executeUpdate(String sql, StatementPreparation preparation) throws DatabaseConnectionException {
+        this.connectToDatabase(false);
+
+        PreparedStatement statement = null;
         try {
-            PreparedStatement statement = this.databaseCon.prepareStatement("DELETE FROM Files WHERE fileID = ?");
-            statement.setString(1, fileID);
+            statement = this.acquireStatement(sql);
+            preparation.prepare(statement);
             statement.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            if (statement != null) this.releaseStatement(sql, statement);
         }
     }
 
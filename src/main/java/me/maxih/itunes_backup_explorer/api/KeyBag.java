@@ -13,23 +13,50 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class KeyBag {
     private static final Set<String> CLASS_KEY_TAGS = Set.of("CLAS", "WRAP", "WPKY", "KTYP", "PBKY");
     private static final int WRAP_DEVICE = 1;
     private static final int WRAP_PASSCODE = 2;
 
-    private static final int BUFFER_SIZE = 16384;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int BLOCK_SIZE = 16;
+    // Files from this size on are decrypted in segments on several threads
+    private static final long PARALLEL_THRESHOLD = 64L << 20;
+    private static final int SEGMENT_SIZE = 16 << 20;
+    private static final int FILE_KEY_CACHE_SIZE = 4096;
+    private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[BLOCK_SIZE]);
+
+    // Looking up a Cipher is expensive compared to decrypting a small file, but Ciphers are not thread-safe,
+    // so each thread keeps one per transformation and only initializes it again for every file
+    private static final ThreadLocal<Map<String, Cipher>> THREAD_CIPHERS = ThreadLocal.withInitial(HashMap::new);
+
+    // Direct buffers for whole-file encryption and decryption, kept per thread, so they are allocated only once.
+    // The output has room for one more block than the input, which is the most a cipher can return for a chunk.
+    private static final ThreadLocal<ByteBuffer[]> CHUNK_BUFFERS = ThreadLocal.withInitial(() -> new ByteBuffer[]{
+            ByteBuffer.allocateDirect(CHUNK_SIZE),
+            ByteBuffer.allocateDirect(CHUNK_SIZE + 32)
+    });
 
     public int type;
     public byte[] uuid;
@@ -37,7 +64,8 @@ public class KeyBag {
     public final Map<ByteBuffer, Map<String, byte[]>> classKeys = new HashMap<>();
     public final Map<String, byte[]> attrs = new HashMap<>();
 
-    private boolean unlocked = false;
+    // Only replaced as a whole, so threads never see a partly unlocked key bag
+    private volatile UnlockedKeys unlockedKeys = null;
 
     public KeyBag(NSData data) throws BackupReadException {
         this.parseBinaryBlob(data);
@@ -110,7 +138,7 @@ public class KeyBag {
     }
 
     public boolean isLocked() {
-        return !this.unlocked;
+        return this.unlockedKeys == null;
     }
 
     public void unlock(String passcode) throws InvalidKeyException {
@@ -135,111 +163,367 @@ public class KeyBag {
             byte[] keyEncryptionKey = ((KeyParameter) gen.generateDerivedParameters(32 * 8)).getKey();
 
             Cipher c = Cipher.getInstance("AESWrap");
+            Map<Integer, byte[]> unwrappedClassKeys = new HashMap<>();
 
             for (Map<String, byte[]> classKey : this.classKeys.values()) {
                 if (!classKey.containsKey("WPKY")) continue;
+                byte[] protectionClass = classKey.get("CLAS");
+                if (protectionClass == null || protectionClass.length != 4) continue;
                 int wrap = ByteBuffer.wrap(classKey.get("WRAP")).getInt();
                 if ((wrap & WRAP_PASSCODE) != 0) {
                     c.init(Cipher.UNWRAP_MODE, new SecretKeySpec(keyEncryptionKey, "AES"));
                     Key contentEncryptionKey = c.unwrap(classKey.get("WPKY"), "AES", Cipher.SECRET_KEY);
                     if (contentEncryptionKey != null) {
-                        classKey.put("KEY", contentEncryptionKey.getEncoded());
+                        unwrappedClassKeys.put(ByteBuffer.wrap(protectionClass).getInt(), contentEncryptionKey.getEncoded());
                     }
                 }
             }
 
-            this.unlocked = true;
+            this.unlockedKeys = new UnlockedKeys(unwrappedClassKeys);
         } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException e) {
             e.printStackTrace();
         }
     }
 
     public byte[] unwrapKeyForClass(byte[] protectionClass, byte[] persistentKey) throws BackupReadException, NotUnlockedException, InvalidKeyException, UnsupportedCryptoException {
-        if (this.isLocked()) throw new NotUnlockedException();
-
-        Map<String, byte[]> classKeyMap = this.classKeys.get(ByteBuffer.wrap(protectionClass));
-        if (classKeyMap == null)
-            throw new BackupReadException("Specified protection class '" + Arrays.toString(protectionClass) + "' was not found");
+        return this.unwrapKeyForClass(toClassNumber(protectionClass), persistentKey);
+    }
 
-        byte[] classKey = classKeyMap.get("KEY");
-        if (classKey == null)
-            throw new BackupReadException("No class key was found for the specified protection class");
+    /**
+     * Unwraps the key of a file. Recently unwrapped keys are cached, so decrypting a file again is cheaper.
+     */
+    public byte[] unwrapKeyForClass(int protectionClass, byte[] persistentKey) throws BackupReadException, NotUnlockedException, InvalidKeyException, UnsupportedCryptoException {
+        UnlockedKeys keys = this.unlockedKeys;
+        if (keys == null) throw new NotUnlockedException();
+
+        byte[] classKey = keys.classKeys.get(protectionClass);
+        if (classKey == null) {
+            if (this.classKeys.containsKey(ByteBuffer.allocate(4).putInt(protectionClass).flip()))
+                throw new BackupReadException("No class key was found for the specified protection class");
+            throw new BackupReadException("Specified protection class '" + protectionClass + "' was not found");
+        }
 
         if (persistentKey.length != 0x28)
             throw new BackupReadException("Invalid class key length");
 
+        ByteBuffer cacheKey = ByteBuffer.allocate(4 + persistentKey.length).putInt(protectionClass).put(persistentKey).flip();
+        byte[] key = keys.getFileKey(cacheKey);
+        if (key != null) return key;
+
+        Cipher c = getThreadCipher("AESWrap");
+        c.init(Cipher.UNWRAP_MODE, new SecretKeySpec(classKey, "AES"));
         try {
-            Cipher c = Cipher.getInstance("AESWrap");
-            c.init(Cipher.UNWRAP_MODE, new SecretKeySpec(classKey, "AES"));
-            return c.unwrap(persistentKey, "AES", Cipher.SECRET_KEY).getEncoded();
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            key = c.unwrap(persistentKey, "AES", Cipher.SECRET_KEY).getEncoded();
+        } catch (NoSuchAlgorithmException e) {
             throw new UnsupportedCryptoException(e);
         }
+
+        keys.putFileKey(cacheKey, key);
+        return key;
     }
 
+    private static int toClassNumber(byte[] protectionClass) throws BackupReadException {
+        if (protectionClass.length != 4)
+            throw new BackupReadException("Specified protection class '" + Arrays.toString(protectionClass) + "' was not found");
+        return ByteBuffer.wrap(protectionClass).getInt();
+    }
 
-    public InputStream decryptStream(byte[] protectionClass, byte[] persistentKey, InputStream source, String cipherMode) throws UnsupportedCryptoException, BackupReadException, NotUnlockedException, InvalidKeyException {
-        byte[] key = this.unwrapKeyForClass(protectionClass, persistentKey);
+    private static Cipher getThreadCipher(String cipherMode) throws UnsupportedCryptoException {
+        Map<String, Cipher> ciphers = THREAD_CIPHERS.get();
+        Cipher cipher = ciphers.get(cipherMode);
+        if (cipher == null) {
+            try {
+                cipher = Cipher.getInstance(cipherMode);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new UnsupportedCryptoException(e);
+            }
+            ciphers.put(cipherMode, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * @return The cipher of this thread, initialized for the file. It must not be used after the next call on this thread.
+     */
+    private Cipher getThreadCipher(int mode, int protectionClass, byte[] persistentKey, String cipherMode) throws UnsupportedCryptoException, BackupReadException, NotUnlockedException, InvalidKeyException {
+        return initCipher(getThreadCipher(cipherMode), mode, this.unwrapKeyForClass(protectionClass, persistentKey), ZERO_IV);
+    }
+
+    /**
+     * @return A new cipher for streams, which may be used at the same time as others on the same thread
+     */
+    private Cipher getCipher(int mode, int protectionClass, byte[] persistentKey, String cipherMode) throws UnsupportedCryptoException, BackupReadException, NotUnlockedException, InvalidKeyException {
+        return newCipher(mode, this.unwrapKeyForClass(protectionClass, persistentKey), ZERO_IV, cipherMode);
+    }
+
+    private static Cipher newCipher(int mode, byte[] key, IvParameterSpec iv, String cipherMode) throws UnsupportedCryptoException, InvalidKeyException {
+        try {
+            return initCipher(Cipher.getInstance(cipherMode), mode, key, iv);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new UnsupportedCryptoException(e);
+        }
+    }
 
+    private static Cipher initCipher(Cipher cipher, int mode, byte[] key, IvParameterSpec iv) throws UnsupportedCryptoException, InvalidKeyException {
         try {
-            Cipher c = Cipher.getInstance(cipherMode);
-            c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
-            return new CipherInputStream(source, c);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
+            cipher.init(mode, new SecretKeySpec(key, "AES"), iv);
+            return cipher;
+        } catch (InvalidAlgorithmParameterException e) {
             throw new UnsupportedCryptoException(e);
         }
     }
 
+    public InputStream decryptStream(byte[] protectionClass, byte[] persistentKey, InputStream source, String cipherMode) throws UnsupportedCryptoException, BackupReadException, NotUnlockedException, InvalidKeyException {
+        return this.decryptStream(toClassNumber(protectionClass), persistentKey, source, cipherMode);
+    }
+
+    public InputStream decryptStream(int protectionClass, byte[] persistentKey, InputStream source, String cipherMode) throws UnsupportedCryptoException, BackupReadException, NotUnlockedException, InvalidKeyException {
+        return new CipherInputStream(source, this.getCipher(Cipher.DECRYPT_MODE, protectionClass, persistentKey, cipherMode));
+    }
+
     public InputStream decryptStream(byte[] protectionClass, byte[] persistentKey, InputStream source) throws UnsupportedCryptoException, BackupReadException, NotUnlockedException, InvalidKeyException {
         return decryptStream(protectionClass, persistentKey, source, "AES/CBC/PKCS5Padding");
     }
 
-    protected void decryptFilePaddingFallback(byte[] protectionClass, byte[] persistentKey, File source, File destination, long size) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
+    /**
+     * Runs the whole source file through the cipher into the destination file, which is used for encrypting.
+     * Reads and writes large chunks through file channels, without the small internal buffer of {@link CipherInputStream}.
+     *
+     * @return The size of the destination file
+     * @throws BadPaddingException if the padding of the decrypted data is invalid
+     */
+    private static long transform(Cipher cipher, File source, File destination) throws IOException, BadPaddingException {
+        ByteBuffer[] buffers = CHUNK_BUFFERS.get();
+        ByteBuffer input = buffers[0];
+        ByteBuffer output = buffers[1];
+
         try (
-                BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE);
-                InputStream decryptStream = decryptStream(protectionClass, persistentKey, inputStream, "AES/CBC/NoPadding");
+                FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel destinationChannel = FileChannel.open(destination.toPath(),
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            input.clear();
+            while (sourceChannel.read(input) != -1) {
+                if (input.hasRemaining()) continue;
+
+                input.flip();
+                output.clear();
+                cipher.update(input, output);
+                writeFully(destinationChannel, output.flip());
+                input.clear();
+            }
 
-                FileOutputStream fileOutputStream = new FileOutputStream(destination);
-                BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE)
+            input.flip();
+            output.clear();
+            cipher.doFinal(input, output);
+            writeFully(destinationChannel, output.flip());
+
+            return destinationChannel.size();
+        } catch (ShortBufferException | IllegalBlockSizeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Decrypts a whole AES-CBC file and removes its PKCS#7 padding in a single pass.
+     * The cipher must not handle padding itself. The last block is held back until the end of the file,
+     * so valid padding is never written. If the padding is invalid, the whole decrypted content is kept
+     * and repaired with {@link BackupFilePaddingFixer#tryFixPadding(FileChannel)}, without decrypting the file again.
+     *
+     * @return The size of the destination file
+     */
+    static long decryptUnpadded(Cipher cipher, File source, File destination) throws IOException {
+        ByteBuffer[] buffers = CHUNK_BUFFERS.get();
+        ByteBuffer input = buffers[0];
+        ByteBuffer output = buffers[1];
+        byte[] lastBlock = new byte[BLOCK_SIZE];
+        boolean hasLastBlock = false;
+
+        try (
+                FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel destinationChannel = FileChannel.open(destination.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
         ) {
-            decryptStream.transferTo(outputStream);
-            outputStream.flush();
+            input.clear();
+            boolean end = false;
+            while (!end) {
+                end = sourceChannel.read(input) == -1;
+                if (!end && input.hasRemaining()) continue;
+
+                input.flip();
+                output.clear();
+                if (end) cipher.doFinal(input, output);
+                else cipher.update(input, output);
+                output.flip();
+                input.clear();
+
+                // Without padding, the cipher only returns whole blocks
+                if (output.remaining() < BLOCK_SIZE) continue;
+
+                if (hasLastBlock) writeFully(destinationChannel, ByteBuffer.wrap(lastBlock));
+                output.limit(output.limit() - BLOCK_SIZE);
+                writeFully(destinationChannel, output);
+                output.limit(output.limit() + BLOCK_SIZE);
+                output.get(lastBlock);
+                hasLastBlock = true;
+            }
+
+            if (!hasLastBlock) return 0;
 
-            if (size != -1L && fileOutputStream.getChannel().size() != size) {
-                System.out.printf("Warning: File size from database doesn't match actual decrypted size - expected %9d, got %9d (%s)%n", size, fileOutputStream.getChannel().size(), destination.getPath());
+            int padding = getPadding(lastBlock);
+            if (padding > 0) {
+                writeFully(destinationChannel, ByteBuffer.wrap(lastBlock, 0, BLOCK_SIZE - padding));
+                return destinationChannel.size();
             }
 
-            BackupFilePaddingFixer.tryFixPadding(destination);
+            writeFully(destinationChannel, ByteBuffer.wrap(lastBlock));
+            System.out.println("Warning: Bad padding (" + destination.getPath() + ")");
+            return BackupFilePaddingFixer.tryFixPadding(destinationChannel);
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new IOException(e);
         }
     }
 
-    public void decryptFile(byte[] protectionClass, byte[] persistentKey, File source, File destination, long size) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
-        try (
-                BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE);
-                InputStream decryptStream = decryptStream(protectionClass, persistentKey, inputStream);
+    /**
+     * @return The length of the PKCS#7 padding at the end of the last block, or 0 if it is not padded correctly
+     */
+    private static int getPadding(byte[] lastBlock) {
+        int padding = lastBlock[BLOCK_SIZE - 1] & 0xFF;
+        if (padding < 1 || padding > BLOCK_SIZE) return 0;
+        for (int i = BLOCK_SIZE - padding; i < BLOCK_SIZE; i++) {
+            if (lastBlock[i] != padding) return 0;
+        }
+        return padding;
+    }
 
-                FileOutputStream fileOutputStream = new FileOutputStream(destination);
-                BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE)
+    /**
+     * Decrypts a large AES-CBC file with PKCS#7 padding in independent segments on several threads.
+     * In CBC mode, a block only depends on the ciphertext block before it, so each segment is decrypted
+     * with the last ciphertext block before it as IV, which gives exactly the same result as decrypting the file at once.
+     * The padding is checked and cut off after all segments are written, invalid padding is handled like in {@link #decryptUnpadded}.
+     *
+     * @param segmentSize Size of the segments, a multiple of the block size
+     * @return The size of the destination file
+     */
+    static long decryptSegments(byte[] key, File source, File destination, int segmentSize) throws IOException, UnsupportedCryptoException, InvalidKeyException {
+        try (
+                FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel destinationChannel = FileChannel.open(destination.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
         ) {
-            decryptStream.transferTo(outputStream);
-            outputStream.flush();
+            long length = sourceChannel.size();
+            if (length == 0 || length % BLOCK_SIZE != 0)
+                throw new IOException(new IllegalBlockSizeException("Input length is not a multiple of " + BLOCK_SIZE + " bytes"));
+
+            List<Future<?>> segments = new ArrayList<>();
+            for (long offset = 0; offset < length; offset += segmentSize) {
+                long start = offset;
+                long end = Math.min(length, offset + segmentSize);
+
+                ByteBuffer iv = ByteBuffer.allocate(BLOCK_SIZE);
+                if (start > 0) readFully(sourceChannel, iv, start - BLOCK_SIZE);
+                Cipher cipher = newCipher(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv.array()), "AES/CBC/NoPadding");
+
+                segments.add(SegmentPool.POOL.submit(() -> {
+                    decryptSegment(cipher, sourceChannel, destinationChannel, start, end);
+                    return null;
+                }));
+            }
 
-            if (size != -1L && fileOutputStream.getChannel().size() != size) {
-                System.out.printf("Warning: File size from database doesn't match actual decrypted size - expected %9d, got %9d (%s)%n", size, fileOutputStream.getChannel().size(), destination.getPath());
+            try {
+                for (Future<?> segment : segments) segment.get();
+            } catch (InterruptedException e) {
+                segments.forEach(segment -> segment.cancel(false));
+                // Kept for the caller, e.g. the extractor's workers, which check it to stop
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Decryption was interrupted");
+            } catch (ExecutionException e) {
+                segments.forEach(segment -> segment.cancel(false));
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
             }
-        } catch (IOException e) {
-            if (e.getCause() instanceof BadPaddingException) {
-                System.out.println("Warning: Bad padding - " + e.getMessage() + " (" + destination.getPath() + ")");
-                System.out.println("Trying to decrypt again without padding...");
-                decryptFilePaddingFallback(protectionClass, persistentKey, source, destination, size);
-            } else {
-                throw e;
+
+            ByteBuffer lastBlock = ByteBuffer.allocate(BLOCK_SIZE);
+            readFully(destinationChannel, lastBlock, length - BLOCK_SIZE);
+            int padding = getPadding(lastBlock.array());
+            if (padding > 0) {
+                destinationChannel.truncate(length - padding);
+                return length - padding;
             }
+
+            System.out.println("Warning: Bad padding (" + destination.getPath() + ")");
+            return BackupFilePaddingFixer.tryFixPadding(destinationChannel);
+        }
+    }
+
+    private static void decryptSegment(Cipher cipher, FileChannel source, FileChannel destination, long start, long end) throws IOException {
+        ByteBuffer[] buffers = CHUNK_BUFFERS.get();
+        ByteBuffer input = buffers[0];
+        ByteBuffer output = buffers[1];
+
+        long readPosition = start;
+        long writePosition = start;
+        try {
+            while (readPosition < end) {
+                input.clear();
+                input.limit((int) Math.min(CHUNK_SIZE, end - readPosition));
+                readFully(source, input, readPosition);
+                readPosition += input.limit();
+
+                input.flip();
+                output.clear();
+                cipher.update(input, output);
+                writePosition += writeFully(destination, output.flip(), writePosition);
+            }
+
+            input.clear().flip();
+            output.clear();
+            cipher.doFinal(input, output);
+            writeFully(destination, output.flip(), writePosition);
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void checkDecryptedSize(File destination, long size, long decryptedSize) {
+        if (size != -1L && decryptedSize != size) {
+            System.out.printf("Warning: File size from database doesn't match actual decrypted size - expected %9d, got %9d (%s)%n", size, decryptedSize, destination.getPath());
         }
     }
 
+    public void decryptFile(byte[] protectionClass, byte[] persistentKey, File source, File destination, long size) throws IOException, BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
+        decryptFile(toClassNumber(protectionClass), persistentKey, source, destination, size);
+    }
+
     public void decryptFile(int protectionClass, byte[] persistentKey, File source, File destination, long size) throws BackupReadException, UnsupportedCryptoException, NotUnlockedException, IOException, InvalidKeyException {
-        decryptFile(ByteBuffer.allocate(4).putInt(protectionClass).array(), persistentKey, source, destination, size);
+        long decryptedSize;
+        if (source.length() >= PARALLEL_THRESHOLD && SegmentPool.THREADS > 1)
+            decryptedSize = decryptSegments(this.unwrapKeyForClass(protectionClass, persistentKey), source, destination, SEGMENT_SIZE);
+        else
+            decryptedSize = decryptUnpadded(this.getThreadCipher(Cipher.DECRYPT_MODE, protectionClass, persistentKey, "AES/CBC/NoPadding"), source, destination);
+        checkDecryptedSize(destination, size, decryptedSize);
     }
 
     public void decryptFile(int protectionClass, byte[] persistentKey, File source, File destination) throws BackupReadException, UnsupportedCryptoException, NotUnlockedException, IOException, InvalidKeyException {
@@ -247,30 +531,59 @@ public class KeyBag {
     }
 
     public OutputStream encryptStream(byte[] protectionClass, byte[] persistentKey, OutputStream destination) throws BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException {
-        byte[] key = this.unwrapKeyForClass(protectionClass, persistentKey);
+        return new CipherOutputStream(destination, this.getCipher(Cipher.ENCRYPT_MODE, toClassNumber(protectionClass), persistentKey, "AES/CBC/PKCS5Padding"));
+    }
+
+    public void encryptFile(byte[] protectionClass, byte[] persistentKey, File source, File destination) throws BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException, IOException {
+        encryptFile(toClassNumber(protectionClass), persistentKey, source, destination);
+    }
 
+    public void encryptFile(int protectionClass, byte[] persistentKey, File source, File destination) throws BackupReadException, UnsupportedCryptoException, NotUnlockedException, IOException, InvalidKeyException {
         try {
-            Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[16]));
-            return new CipherOutputStream(destination, c);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException e) {
-            throw new UnsupportedCryptoException(e);
+            transform(this.getThreadCipher(Cipher.ENCRYPT_MODE, protectionClass, persistentKey, "AES/CBC/PKCS5Padding"), source, destination);
+        } catch (BadPaddingException e) {
+            // Only decryption checks the padding
+            throw new IOException(e);
         }
     }
 
-    public void encryptFile(byte[] protectionClass, byte[] persistentKey, File source, File destination) throws BackupReadException, UnsupportedCryptoException, NotUnlockedException, InvalidKeyException, IOException {
-        try (
-                BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE);
+    /**
+     * The class keys of an unlocked key bag, which never change after unlocking and can be shared by all threads.
+     * Also keeps the most recently unwrapped file keys, because files are often decrypted more than once,
+     * e.g. when they are opened and exported or verified after exporting.
+     */
+    private static class UnlockedKeys {
+        final Map<Integer, byte[]> classKeys;
+        private final Map<ByteBuffer, byte[]> fileKeys = new LinkedHashMap<>(FILE_KEY_CACHE_SIZE, 0.75f, true);
+
+        UnlockedKeys(Map<Integer, byte[]> classKeys) {
+            this.classKeys = Map.copyOf(classKeys);
+        }
 
-                BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE);
-                OutputStream encryptStream = encryptStream(protectionClass, persistentKey, outputStream)
-        ) {
-            inputStream.transferTo(encryptStream);
+        synchronized byte[] getFileKey(ByteBuffer wrappedKey) {
+            return this.fileKeys.get(wrappedKey);
+        }
+
+        synchronized void putFileKey(ByteBuffer wrappedKey, byte[] key) {
+            this.fileKeys.put(wrappedKey, key);
+            if (this.fileKeys.size() > FILE_KEY_CACHE_SIZE) {
+                Iterator<byte[]> eldest = this.fileKeys.values().iterator();
+                eldest.next();
+                eldest.remove();
+            }
         }
     }
 
-    public void encryptFile(int protectionClass, byte[] persistentKey, File source, File destination) throws BackupReadException, UnsupportedCryptoException, NotUnlockedException, IOException, InvalidKeyException {
-        encryptFile(ByteBuffer.allocate(4).putInt(protectionClass).array(), persistentKey, source, destination);
+    /**
+     * Threads for decrypting segments of large files, only created when the first large file is decrypted
+     */
+    private static class SegmentPool {
+        static final int THREADS = Runtime.getRuntime().availableProcessors();
+        static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "decrypt-segment");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-}
\ No newline at end of file
+}
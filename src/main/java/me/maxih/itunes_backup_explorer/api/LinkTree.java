@@ -0,0 +1,218 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A directory tree with the domains and relative paths of an unencrypted backup,
+ * made of links to the content files, so ordinary tools can work on the backup without copying anything.
+ * The state of the tree is stored in a file at its root, so refreshing only touches links whose file changed.
+ */
+public class LinkTree {
+    private static final String STATE_FILE_NAME = ".backup-links";
+    private static final int STATE_VERSION = 2;
+
+    private final ITunesBackup backup;
+    private final File root;
+    private final LinkType linkType;
+
+    /**
+     * @param root     The directory to create the tree in
+     * @param linkType Hard links need the tree to be on the same file system as the backup,
+     *                 symbolic links might need special permissions on Windows
+     * @throws UnsupportedOperationException if the backup is encrypted
+     */
+    public LinkTree(ITunesBackup backup, File root, LinkType linkType) {
+        if (backup.manifest.encrypted)
+            throw new UnsupportedOperationException("Content files of encrypted backups can't be linked");
+
+        this.backup = backup;
+        this.root = root;
+        this.linkType = linkType;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Creates the tree, or brings an existing tree up to date with the backup.
+     * Links of removed files are deleted, but directories are left in place.
+     * Every link is checked, so links which were deleted or not created by an interrupted refresh are repaired.
+     * Files whose content file is missing in the backup are skipped.
+     *
+     * @throws IOException                 if the tree or its state file could not be written
+     * @throws DatabaseConnectionException if the backup database could not be read
+     */
+    public Result refresh() throws IOException, DatabaseConnectionException {
+        Files.createDirectories(root.toPath());
+
+        File stateFile = new File(root, STATE_FILE_NAME);
+        State oldState = State.read(stateFile, linkType);
+        Map<String, Link> oldLinks = oldState != null ? oldState.links : new HashMap<>();
+        State newState = new State(linkType);
+        int created = 0;
+        int updated = 0;
+        int unchanged = 0;
+        int missing = 0;
+
+        try (Stream<BackupFile> files = backup.streamAllFiles()) {
+            for (BackupFile file : (Iterable<BackupFile>) files::iterator) {
+                File destination = file.getExtractionDestination(root, true);
+
+                if (file.getFileType() == BackupFile.FileType.DIRECTORY) {
+                    Files.createDirectories(destination.toPath());
+                    continue;
+                } else if (file.getFileType() != BackupFile.FileType.FILE) {
+                    continue;
+                }
+
+                File contentFile = file.getContentFile();
+                String key = root.toPath().relativize(destination.toPath()).toString();
+                if (!contentFile.isFile()) {
+                    // Left out of the state, so an old link to it is removed below
+                    missing++;
+                    continue;
+                }
+
+                Link link = new Link(file.fileID, contentFile.length(), contentFile.lastModified());
+                newState.links.put(key, link);
+
+                Link oldLink = oldLinks.get(key);
+                if (link.equals(oldLink) && Files.exists(destination.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                    unchanged++;
+                    continue;
+                }
+
+                Files.createDirectories(destination.getParentFile().toPath());
+                Files.deleteIfExists(destination.toPath());
+                if (linkType == LinkType.HARD)
+                    Files.createLink(destination.toPath(), contentFile.toPath());
+                else
+                    Files.createSymbolicLink(destination.toPath(), contentFile.getAbsoluteFile().toPath());
+
+                if (oldLink == null) created++;
+                else updated++;
+            }
+        } catch (IOException | DatabaseConnectionException | RuntimeException e) {
+            // Links which were created before the failure still have to be known to the next refresh
+            oldLinks.forEach(newState.links::putIfAbsent);
+            try {
+                newState.write(stateFile);
+            } catch (IOException writeException) {
+                e.addSuppressed(writeException);
+            }
+            throw e;
+        }
+
+        int removed = 0;
+        for (String key : oldLinks.keySet()) {
+            if (newState.links.containsKey(key)) continue;
+            if (Files.deleteIfExists(root.toPath().resolve(key))) removed++;
+        }
+
+        newState.write(stateFile);
+        return new Result(created, updated, removed, unchanged, missing);
+    }
+
+    public enum LinkType {
+        HARD,
+        SYMBOLIC
+    }
+
+    private static class Link {
+        final String fileID;
+        final long size;
+        final long lastModified;
+
+        Link(String fileID, long size, long lastModified) {
+            this.fileID = fileID;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Link)) return false;
+            Link other = (Link) o;
+            return size == other.size && lastModified == other.lastModified && fileID.equals(other.fileID);
+        }
+
+        @Override
+        public int hashCode() {
+            return fileID.hashCode();
+        }
+    }
+
+    private static class State {
+        final LinkType linkType;
+        final Map<String, Link> links = new HashMap<>();
+
+        State(LinkType linkType) {
+            this.linkType = linkType;
+        }
+
+        /**
+         * @return The state or null if there is no usable state file, e.g. because the tree used other links
+         */
+        static State read(File file, LinkType linkType) {
+            if (!file.isFile()) return null;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != STATE_VERSION) return null;
+                if (!in.readUTF().equals(linkType.name())) return null;
+
+                State state = new State(linkType);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    state.links.put(key, new Link(in.readUTF(), in.readLong(), in.readLong()));
+                }
+                return state;
+            } catch (IOException e) {
+                System.out.println("Link tree state " + file.getAbsolutePath() + " could not be read: " + e.getMessage());
+                return null;
+            }
+        }
+
+        void write(File file) throws IOException {
+            File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(STATE_VERSION);
+                out.writeUTF(linkType.name());
+                out.writeInt(links.size());
+                for (Map.Entry<String, Link> entry : links.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue().fileID);
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().lastModified);
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    public static class Result {
+        public final int created;
+        public final int updated;
+        public final int removed;
+        public final int unchanged;
+        /**
+         * Files which were skipped because their content file is not in the backup
+         */
+        public final int missing;
+
+        Result(int created, int updated, int removed, int unchanged, int missing) {
+            this.created = created;
+            this.updated = updated;
+            this.removed = removed;
+            this.unchanged = unchanged;
+            this.missing = missing;
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the properties of an archived MBFile object from the <code>file</code> column of Manifest.db
+ * directly from the binary property list, without building an object graph for the whole archive.
+ * Records with an unexpected structure are rejected, so the caller can fall back to a full parse.
+ */
+final class MBFileRecord {
+    private static final byte[] MAGIC = "bplist00".getBytes(StandardCharsets.US_ASCII);
+    private static final int TRAILER_SIZE = 32;
+
+    private static final byte[] KEY_TOP = ascii("$top");
+    private static final byte[] KEY_ROOT = ascii("root");
+    private static final byte[] KEY_OBJECTS = ascii("$objects");
+    private static final byte[] KEY_SIZE = ascii("Size");
+    private static final byte[] KEY_PROTECTION_CLASS = ascii("ProtectionClass");
+    private static final byte[] KEY_LAST_MODIFIED = ascii("LastModified");
+    private static final byte[] KEY_ENCRYPTION_KEY = ascii("EncryptionKey");
+    private static final byte[] KEY_DIGEST = ascii("Digest");
+    private static final byte[] KEY_TARGET = ascii("Target");
+    private static final byte[] KEY_NS_DATA = ascii("NS.data");
+
+    private static final int TYPE_INT = 0x1;
+    private static final int TYPE_DATA = 0x4;
+    private static final int TYPE_ASCII_STRING = 0x5;
+    private static final int TYPE_UTF16_STRING = 0x6;
+    private static final int TYPE_UID = 0x8;
+    private static final int TYPE_ARRAY = 0xA;
+    private static final int TYPE_DICT = 0xD;
+
+    private static final int NOT_FOUND = -1;
+
+    // Values that are missing in the record are null
+    Long size;
+    Integer protectionClass;
+    Long lastModified;
+    byte[] encryptionKey;
+    byte[] digest;
+    String target;
+
+    private final byte[] bytes;
+    private int offsetSize;
+    private int refSize;
+    private int numObjects;
+    private int offsetTableOffset;
+
+    // Result of the last readLength call: start of the object's content and its length
+    private int contentStart;
+    private int contentLength;
+
+    private MBFileRecord(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param bytes The binary property list of the archived MBFile
+     * @return The decoded record or null if the data does not have the expected structure
+     */
+    static MBFileRecord parse(byte[] bytes) {
+        if (bytes == null || bytes.length < MAGIC.length + TRAILER_SIZE) return null;
+        if (!Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) return null;
+
+        MBFileRecord record = new MBFileRecord(bytes);
+        try {
+            return record.read() ? record : null;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private boolean read() {
+        int trailer = bytes.length - TRAILER_SIZE;
+        this.offsetSize = bytes[trailer + 6] & 0xFF;
+        this.refSize = bytes[trailer + 7] & 0xFF;
+        this.numObjects = toIndex(readUInt(trailer + 8, 8));
+        int topObject = toIndex(readUInt(trailer + 16, 8));
+        this.offsetTableOffset = toIndex(readUInt(trailer + 24, 8));
+        if (offsetSize < 1 || offsetSize > 8 || refSize < 1 || refSize > 8) return false;
+
+        int top = lookup(topObject, KEY_TOP);
+        int objects = lookup(topObject, KEY_OBJECTS);
+        if (top == NOT_FOUND || objects == NOT_FOUND) return false;
+
+        int rootUID = lookup(top, KEY_ROOT);
+        if (rootUID == NOT_FOUND) return false;
+        int root = arrayElement(objects, readUID(rootUID));
+        if (type(root) != TYPE_DICT) return false;
+
+        int ref;
+        if ((ref = lookup(root, KEY_SIZE)) != NOT_FOUND) this.size = readInteger(ref);
+        if ((ref = lookup(root, KEY_PROTECTION_CLASS)) != NOT_FOUND) this.protectionClass = (int) readInteger(ref);
+        if ((ref = lookup(root, KEY_LAST_MODIFIED)) != NOT_FOUND) this.lastModified = readInteger(ref);
+
+        if ((ref = lookup(root, KEY_ENCRYPTION_KEY)) != NOT_FOUND) {
+            int keyData = lookup(arrayElement(objects, readUID(ref)), KEY_NS_DATA);
+            if (keyData == NOT_FOUND) return false;
+            // The first four bytes are the protection class, followed by the 40 byte wrapped key
+            readLength(keyData, TYPE_DATA);
+            if (contentLength < 44) return false;
+            this.encryptionKey = Arrays.copyOfRange(bytes, contentStart + 4, contentStart + 44);
+        }
+
+        if ((ref = lookup(root, KEY_DIGEST)) != NOT_FOUND) {
+            readLength(arrayElement(objects, readUID(ref)), TYPE_DATA);
+            this.digest = Arrays.copyOfRange(bytes, contentStart, contentStart + contentLength);
+        }
+
+        if ((ref = lookup(root, KEY_TARGET)) != NOT_FOUND) {
+            this.target = readString(arrayElement(objects, readUID(ref)));
+        }
+
+        return true;
+    }
+
+    private long readUInt(int position, int length) {
+        if (position < 0 || position + length > bytes.length) throw new IndexOutOfBoundsException(position);
+        long value = 0;
+        for (int i = 0; i < length; i++) value = (value << 8) | (bytes[position + i] & 0xFF);
+        return value;
+    }
+
+    private int toIndex(long value) {
+        if (value < 0 || value > Integer.MAX_VALUE) throw new IllegalArgumentException("Offset out of range");
+        return (int) value;
+    }
+
+    private int objectOffset(int ref) {
+        if (ref < 0 || ref >= numObjects) throw new IndexOutOfBoundsException(ref);
+        return toIndex(readUInt(offsetTableOffset + ref * offsetSize, offsetSize));
+    }
+
+    private int type(int ref) {
+        return (bytes[objectOffset(ref)] & 0xF0) >> 4;
+    }
+
+    /**
+     * Reads the marker of a variable-length object and stores the position and length of its content.
+     */
+    private void readLength(int ref, int expectedType) {
+        int offset = objectOffset(ref);
+        int marker = bytes[offset] & 0xFF;
+        if (marker >> 4 != expectedType) throw new IllegalArgumentException("Unexpected object type");
+
+        int length = marker & 0x0F;
+        int start = offset + 1;
+        if (length == 0x0F) {
+            int intMarker = bytes[start] & 0xFF;
+            if (intMarker >> 4 != TYPE_INT) throw new IllegalArgumentException("Invalid length");
+            int intSize = 1 << (intMarker & 0x0F);
+            length = toIndex(readUInt(start + 1, intSize));
+            start += 1 + intSize;
+        }
+
+        int unitSize = expectedType == TYPE_UTF16_STRING ? 2 : 1;
+        if (expectedType != TYPE_ARRAY && expectedType != TYPE_DICT && start + (long) length * unitSize > bytes.length)
+            throw new IndexOutOfBoundsException(start + length);
+
+        this.contentStart = start;
+        this.contentLength = length;
+    }
+
+    private int lookup(int dictRef, byte[] key) {
+        readLength(dictRef, TYPE_DICT);
+        int keys = contentStart;
+        int count = contentLength;
+
+        for (int i = 0; i < count; i++) {
+            int keyRef = toIndex(readUInt(keys + i * refSize, refSize));
+            int keyOffset = objectOffset(keyRef);
+            if ((bytes[keyOffset] & 0xFF) >> 4 != TYPE_ASCII_STRING) continue;
+
+            readLength(keyRef, TYPE_ASCII_STRING);
+            if (contentLength == key.length
+                    && Arrays.equals(bytes, contentStart, contentStart + contentLength, key, 0, key.length)) {
+                return toIndex(readUInt(keys + (count + i) * refSize, refSize));
+            }
+        }
+
+        return NOT_FOUND;
+    }
+
+    private int arrayElement(int arrayRef, int index) {
+        readLength(arrayRef, TYPE_ARRAY);
+        if (index < 0 || index >= contentLength) throw new IndexOutOfBoundsException(index);
+        return toIndex(readUInt(contentStart + index * refSize, refSize));
+    }
+
+    private long readInteger(int ref) {
+        int offset = objectOffset(ref);
+        int marker = bytes[offset] & 0xFF;
+        if (marker >> 4 != TYPE_INT) throw new IllegalArgumentException("Expected integer");
+        int exponent = marker & 0x0F;
+        if (exponent > 3) throw new IllegalArgumentException("Unsupported integer size");
+        // 8 byte integers are signed, smaller ones unsigned, so the plain big-endian value is correct for both
+        return readUInt(offset + 1, 1 << exponent);
+    }
+
+    private int readUID(int ref) {
+        int offset = objectOffset(ref);
+        int marker = bytes[offset] & 0xFF;
+        if (marker >> 4 != TYPE_UID) throw new IllegalArgumentException("Expected UID");
+        return toIndex(readUInt(offset + 1, (marker & 0x0F) + 1));
+    }
+
+    private String readString(int ref) {
+        int type = type(ref);
+        if (type == TYPE_ASCII_STRING) {
+            readLength(ref, TYPE_ASCII_STRING);
+            return new String(bytes, contentStart, contentLength, StandardCharsets.US_ASCII);
+        } else if (type == TYPE_UTF16_STRING) {
+            readLength(ref, TYPE_UTF16_STRING);
+            return new String(bytes, contentStart, contentLength * 2, StandardCharsets.UTF_16BE);
+        }
+        throw new IllegalArgumentException("Expected string");
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
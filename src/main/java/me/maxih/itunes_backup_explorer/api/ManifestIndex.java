@@ -0,0 +1,212 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import me.maxih.itunes_backup_explorer.util.CacheDirectories;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sidecar database with indexes that the original Manifest.db does not have.
+ * It lives in the application's cache directory, so Manifest.db itself is never changed.
+ * The sidecar of an encrypted backup contains decrypted paths, so it is kept next to the decrypted database
+ * in the temporary directory instead and deleted with {@link #delete()} when the backup is closed.
+ * The sidecar is tied to the size and modification time of Manifest.db and has to be rebuilt when they change.
+ */
+public class ManifestIndex {
+    private final ITunesBackup backup;
+    private final Kind kind;
+
+    // Held while building, so checking whether the current sidecar is usable doesn't wait for a build to finish
+    private final Object buildLock = new Object();
+
+    // Manifest.db size and modification time the sidecar was last verified against
+    private long verifiedSize = -1;
+    private long verifiedLastModified = -1;
+
+    public ManifestIndex(ITunesBackup backup, Kind kind) {
+        this.backup = backup;
+        this.kind = kind;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The sidecar database, or null if the backup is encrypted and its database is not decrypted
+     */
+    public File getFile() {
+        if (!backup.manifest.encrypted)
+            return new File(CacheDirectories.getBackupCacheDirectory(backup.directory), kind.fileName);
+
+        File decrypted = backup.decryptedDatabaseFile;
+        return decrypted == null ? null : new File(decrypted.getPath() + "-" + kind.fileName);
+    }
+
+    /**
+     * Deletes the sidecar. It must not be attached to a connection anymore.
+     * For encrypted backups, this also deletes a sidecar left in the cache directory by earlier versions.
+     */
+    public void delete() {
+        List<File> files = new ArrayList<>();
+        File file = getFile();
+        if (file != null) files.add(file);
+        if (backup.manifest.encrypted)
+            files.add(new File(CacheDirectories.getBackupCacheDirectory(backup.directory), kind.fileName));
+
+        synchronized (this.buildLock) {
+            for (File f : files) {
+                for (File candidate : new File[]{f, new File(f.getParentFile(), f.getName() + ".tmp")}) {
+                    if (candidate.exists() && !candidate.delete())
+                        System.out.println("Could not delete manifest index " + candidate.getAbsolutePath());
+                }
+            }
+        }
+        synchronized (this) {
+            this.verifiedSize = -1;
+            this.verifiedLastModified = -1;
+        }
+    }
+
+    /**
+     * @return Whether the sidecar exists and was built from the current version of Manifest.db
+     */
+    public synchronized boolean isUpToDate() {
+        long size = backup.manifestDBFile.length();
+        long lastModified = backup.manifestDBFile.lastModified();
+        File file = getFile();
+        if (file == null) return false;
+        if (size == verifiedSize && lastModified == verifiedLastModified && file.exists()) return true;
+
+        if (!file.exists()) return false;
+
+        try (
+                Connection con = DriverManager.getConnection("jdbc:sqlite:" + file.toURI() + "?mode=ro");
+                Statement statement = con.createStatement();
+                ResultSet result = statement.executeQuery("SELECT `version`, `manifestSize`, `manifestLastModified` FROM meta")
+        ) {
+            if (result.next()
+                    && result.getInt(1) == kind.version
+                    && result.getLong(2) == size
+                    && result.getLong(3) == lastModified) {
+                this.verifiedSize = size;
+                this.verifiedLastModified = lastModified;
+                return true;
+            }
+        } catch (SQLException e) {
+            System.out.println("Manifest index '" + kind.fileName + "' of '" + backup.manifest.deviceName + "' is not usable: " + e.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Builds the sidecar from the (decrypted) database of the backup.
+     * It is written to a temporary file first, so a cancelled build never leaves a half-filled index behind.
+     * @throws DatabaseConnectionException if the backup database is not available or the sidecar could not be written
+     */
+    @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
+    public void build() throws DatabaseConnectionException {
+        synchronized (this.buildLock) {
+            this.buildLocked();
+        }
+    }
+
+    @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
+    private void buildLocked() throws DatabaseConnectionException {
+        File source = backup.decryptedDatabaseFile;
+        if (source == null || !source.exists()) throw new DatabaseConnectionException();
+
+        // Taken before reading, so changes during the build are detected next time
+        long size = backup.manifestDBFile.length();
+        long lastModified = backup.manifestDBFile.lastModified();
+
+        File file = getFile();
+        if (file == null) throw new DatabaseConnectionException();
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        long start = System.currentTimeMillis();
+
+        try {
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.deleteIfExists(tempFile.toPath());
+
+            try (
+                    Connection con = DriverManager.getConnection("jdbc:sqlite:" + tempFile.getPath());
+                    Statement statement = con.createStatement()
+            ) {
+                statement.execute("PRAGMA journal_mode = OFF");
+                statement.execute("PRAGMA synchronous = OFF");
+                statement.execute("CREATE TABLE meta (`version` INTEGER, `manifestSize` INTEGER, `manifestLastModified` INTEGER)");
+                statement.execute(kind.createSql);
+
+                try (PreparedStatement attach = con.prepareStatement("ATTACH DATABASE ? AS manifest")) {
+                    attach.setString(1, source.getCanonicalPath());
+                    attach.execute();
+                }
+
+                con.setAutoCommit(false);
+                statement.execute(kind.populateSql);
+                try (PreparedStatement meta = con.prepareStatement("INSERT INTO meta VALUES (?, ?, ?)")) {
+                    meta.setInt(1, kind.version);
+                    meta.setLong(2, size);
+                    meta.setLong(3, lastModified);
+                    meta.executeUpdate();
+                }
+                con.commit();
+                con.setAutoCommit(true);
+
+                statement.execute("DETACH DATABASE manifest");
+            }
+
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (backup.manifest.encrypted) file.deleteOnExit();
+        } catch (SQLException | IOException e) {
+            try {
+                Files.deleteIfExists(tempFile.toPath());
+            } catch (IOException ignored) {
+            }
+            throw new DatabaseConnectionException(e);
+        }
+
+        synchronized (this) {
+            this.verifiedSize = size;
+            this.verifiedLastModified = lastModified;
+        }
+        System.out.println("Built manifest index '" + kind.fileName + "' of '" + backup.manifest.deviceName + "' in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    @SuppressWarnings({"SqlResolve", "SqlNoDataSourceInspection"})
+    public enum Kind {
+        /**
+         * Full-text index over domains and paths which FTS5 uses for LIKE patterns with at least three literal characters
+         */
+        SEARCH(
+                "search.sqlite3", "manifest_search", 1,
+                "CREATE VIRTUAL TABLE files_fts USING fts5(`domain`, `relativePath`, `fileID` UNINDEXED, tokenize = 'trigram')",
+                "INSERT INTO files_fts (`domain`, `relativePath`, `fileID`) SELECT `domain`, `relativePath`, `fileID` FROM manifest.Files"
+        );
+
+        public final String fileName;
+        /**
+         * Name under which the sidecar database is attached to a Manifest.db connection
+         */
+        public final String schema;
+        final int version;
+        final String createSql;
+        final String populateSql;
+
+        Kind(String fileName, String schema, int version, String createSql, String populateSql) {
+            this.fileName = fileName;
+            this.schema = schema;
+            this.version = version;
+            this.createSql = createSql;
+            this.populateSql = populateSql;
+        }
+    }
+
+}
@@ -0,0 +1,452 @@
+package me.maxih.itunes_backup_explorer.cli;
+
+import me.maxih.itunes_backup_explorer.api.*;
+import me.maxih.itunes_backup_explorer.util.AppPreferences;
+import me.maxih.itunes_backup_explorer.util.BackupPathUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.InvalidKeyException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the program without a window, only using the api package, so it also works on servers without a display.
+ * Listings are printed as tab-separated lines, so they can be processed by scripts.
+ * Messages and progress go to stderr.
+ */
+public class CommandLine {
+    public static final int EXIT_OK = 0;
+    /**
+     * The command ran, but some files could not be exported or failed the check
+     */
+    public static final int EXIT_INCOMPLETE = 1;
+    public static final int EXIT_ERROR = 2;
+
+    private static final Set<String> COMMANDS = Set.of("list", "search", "stats", "export", "check", "help");
+    private static final DateFormat DATE_FMT = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+    private static final long PROGRESS_INTERVAL = 5000;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: itunes-backup-explorer <command> [options]",
+            "",
+            "Commands:",
+            "  list                              List all backups in the backup roots",
+            "  search <backup> <domain> <path>   List files matching SQLite LIKE patterns (% and _)",
+            "  stats <backup>                    Show the number and size of files per domain",
+            "  export <backup> <destination>     Extract files with their domain and relative path",
+            "      --domain <domain>             Only files of this domain, can be repeated",
+            "      --glob <pattern>              Only files whose 'domain/relative/path' matches, can be repeated",
+            "                                    (* within a path segment, ** across segments, ? one character)",
+            "      --threads <n>                 Number of threads (default " + FileExtractor.DEFAULT_THREADS + ")",
+            "      --verify                      Check the exported files against the database",
+            "  check <backup>                    Check the content files against the database",
+            "      --threads <n>                 Number of threads (default " + BackupIntegrityChecker.DEFAULT_THREADS + ")",
+            "",
+            "Options:",
+            "  --root <directory>                Directory containing backups, can be repeated (default: the roots from the preferences)",
+            "  --password-file <file>            Read the password of an encrypted backup from the first line of the file",
+            "  --password-stdin                  Read the password of an encrypted backup from the first line of stdin",
+            "",
+            "<backup> is either a backup directory or the name of a backup directory in one of the roots."
+    );
+
+    private final PrintStream out;
+    private final PrintStream err;
+
+    private final List<String> arguments = new ArrayList<>();
+    private final List<File> roots = new ArrayList<>();
+    private final List<String> domains = new ArrayList<>();
+    private final List<Pattern> globs = new ArrayList<>();
+    private File passwordFile;
+    private boolean passwordFromStdin = false;
+    private Integer threads;
+    private boolean verify = false;
+
+    private CommandLine(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * @return Whether the arguments start with a command, so the window should not be opened
+     */
+    public static boolean isCommand(String[] args) {
+        return args.length > 0 && (COMMANDS.contains(args[0]) || args[0].equals("--help"));
+    }
+
+    /**
+     * Runs the command given in the arguments.
+     *
+     * @return The exit code
+     */
+    public static int run(String[] args) {
+        // The api prints its messages to System.out, which would mix them into the listings
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        try {
+            return new CommandLine(out, System.err).execute(args);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private int execute(String[] args) {
+        try {
+            this.parse(args);
+        } catch (UsageException e) {
+            this.err.println(e.getMessage());
+            this.err.println();
+            this.err.println(USAGE);
+            return EXIT_ERROR;
+        }
+
+        if (this.arguments.isEmpty() || this.arguments.get(0).equals("help") || this.arguments.get(0).equals("--help")) {
+            this.out.println(USAGE);
+            return EXIT_OK;
+        }
+
+        try {
+            switch (this.arguments.get(0)) {
+                case "list":
+                    this.expectArguments(0);
+                    return this.list();
+                case "search":
+                    this.expectArguments(3);
+                    return this.withBackup(backup -> this.search(backup, this.arguments.get(2), this.arguments.get(3)));
+                case "stats":
+                    this.expectArguments(1);
+                    return this.withBackup(this::stats);
+                case "export":
+                    this.expectArguments(2);
+                    return this.withBackup(backup -> this.export(backup, new File(this.arguments.get(2))));
+                case "check":
+                    this.expectArguments(1);
+                    return this.withBackup(this::check);
+                default:
+                    throw new UsageException("Unknown command: " + this.arguments.get(0));
+            }
+        } catch (UsageException e) {
+            this.err.println(e.getMessage());
+            this.err.println();
+            this.err.println(USAGE);
+            return EXIT_ERROR;
+        } catch (CommandException e) {
+            this.err.println(e.getMessage());
+            return EXIT_ERROR;
+        } catch (DatabaseConnectionException e) {
+            e.printStackTrace();
+            this.err.println("The backup database could not be read: " + e.getMessage());
+            return EXIT_ERROR;
+        } catch (InterruptedException e) {
+            this.err.println("Interrupted");
+            return EXIT_ERROR;
+        }
+    }
+
+    private void parse(String[] args) throws UsageException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--") || arg.equals("--help")) {
+                this.arguments.add(arg);
+                continue;
+            }
+
+            switch (arg) {
+                case "--root":
+                    this.roots.add(new File(value(args, ++i, arg)));
+                    break;
+                case "--domain":
+                    this.domains.add(value(args, ++i, arg));
+                    break;
+                case "--glob":
+                    this.globs.add(BackupPathUtils.globToPattern(value(args, ++i, arg)));
+                    break;
+                case "--threads":
+                    try {
+                        this.threads = Integer.parseInt(value(args, ++i, arg));
+                    } catch (NumberFormatException e) {
+                        throw new UsageException("--threads needs a number");
+                    }
+                    if (this.threads < 1) throw new UsageException("--threads needs a positive number");
+                    break;
+                case "--verify":
+                    this.verify = true;
+                    break;
+                case "--password-file":
+                    this.passwordFile = new File(value(args, ++i, arg));
+                    break;
+                case "--password-stdin":
+                    this.passwordFromStdin = true;
+                    break;
+                default:
+                    throw new UsageException("Unknown option: " + arg);
+            }
+        }
+    }
+
+    private static String value(String[] args, int index, String option) throws UsageException {
+        if (index >= args.length) throw new UsageException(option + " needs a value");
+        return args[index];
+    }
+
+    private void expectArguments(int count) throws UsageException {
+        if (this.arguments.size() - 1 != count)
+            throw new UsageException(this.arguments.get(0) + " needs " + count + " argument" + (count == 1 ? "" : "s"));
+    }
+
+    private List<File> getRoots() {
+        if (!this.roots.isEmpty()) return this.roots;
+        return AppPreferences.getBackupRoots();
+    }
+
+    private int list() {
+        for (ITunesBackup backup : ITunesBackup.getBackups(this.getRoots(), backup -> {
+        }, (directory, e) -> System.err.println("Could not load " + directory.getAbsolutePath() + ": " + e.getMessage()))) {
+            Optional<BackupInfo> info = backup.getBackupInfo();
+            this.out.println(String.join("\t",
+                    backup.directory.getName(),
+                    backup.manifest.deviceName,
+                    DATE_FMT.format(info.map(i -> i.lastBackupDate).orElse(backup.manifest.date)),
+                    Objects.toString(backup.manifest.productType, ""),
+                    Objects.toString(backup.manifest.productVersion, ""),
+                    backup.manifest.encrypted ? "encrypted" : "unencrypted",
+                    backup.directory.getAbsolutePath()));
+        }
+        return EXIT_OK;
+    }
+
+    private int search(ITunesBackup backup, String domainLike, String relativePathLike) throws DatabaseConnectionException {
+        try (Stream<BackupFile> files = backup.streamSearchFiles(domainLike, relativePathLike)) {
+            files.forEach(this::printFile);
+        }
+        return EXIT_OK;
+    }
+
+    private void printFile(BackupFile file) {
+        this.out.println(String.join("\t",
+                file.getFileType().name().toLowerCase(),
+                file.domain,
+                file.relativePath,
+                file.getFileType() == BackupFile.FileType.FILE ? Long.toString(file.getSize()) : "",
+                file.fileID));
+    }
+
+    private int stats(ITunesBackup backup) throws DatabaseConnectionException {
+        Map<String, long[]> domains = new TreeMap<>();
+        long[] total = new long[4];
+        long encrypted = 0;
+
+        try (Stream<BackupFile> files = backup.streamAllFiles()) {
+            for (BackupFile file : (Iterable<BackupFile>) files::iterator) {
+                long[] domain = domains.computeIfAbsent(file.domain, d -> new long[4]);
+                int index;
+                if (file.getFileType() == BackupFile.FileType.DIRECTORY) index = 1;
+                else if (file.getFileType() == BackupFile.FileType.SYMBOLIC_LINK) index = 2;
+                else index = 0;
+                domain[index]++;
+                total[index]++;
+                if (index == 0) {
+                    domain[3] += file.getSize();
+                    total[3] += file.getSize();
+                    if (file.isEncrypted()) encrypted++;
+                }
+            }
+        }
+
+        this.out.println("domain\tfiles\tdirectories\tsymlinks\tbytes");
+        for (Map.Entry<String, long[]> domain : domains.entrySet()) {
+            long[] counts = domain.getValue();
+            this.out.println(domain.getKey() + "\t" + counts[0] + "\t" + counts[1] + "\t" + counts[2] + "\t" + counts[3]);
+        }
+        this.out.println("total\t" + total[0] + "\t" + total[1] + "\t" + total[2] + "\t" + total[3]);
+        this.err.println(domains.size() + " domains, " + total[0] + " files (" + encrypted + " encrypted), " + formatSize(total[3]));
+        return EXIT_OK;
+    }
+
+    private int export(ITunesBackup backup, File destination) throws DatabaseConnectionException, InterruptedException {
+        List<BackupFile> files;
+        String[] domainArray = this.domains.toArray(new String[0]);
+        try (Stream<BackupFile> stream = this.domains.isEmpty() ? backup.streamAllFiles() : backup.streamDomainFiles(true, domainArray)) {
+            files = stream.filter(this::matchesGlobs).collect(Collectors.toCollection(ArrayList::new));
+        }
+
+        if (files.isEmpty()) {
+            this.err.println("No files match");
+            return EXIT_OK;
+        }
+
+        FileExtractor extractor = (this.threads != null ? new FileExtractor(this.threads) : new FileExtractor())
+                .setOrder(ExtractionOrder.INODE)
+                .setVerify(this.verify)
+                .setProgressListener(new ProgressPrinter())
+                .setErrorHandler((file, exception) -> {
+                    this.err.println("Could not export " + file.domain + ":" + file.relativePath + ": " + exception.getMessage());
+                    return FileExtractor.Decision.CONTINUE;
+                });
+
+        FileExtractor.Result result = extractor.extract(files, destination, true);
+
+        this.err.println(result.extracted + " files extracted (" + formatSize(result.bytes) + "), "
+                + result.resumed + " already extracted, " + result.skipped + " skipped, " + result.failed + " failed");
+        boolean mismatches = false;
+        if (result.verification != null) {
+            mismatches = !result.verification.getMismatches().isEmpty();
+            this.err.println(result.verification.getVerified() + " files verified, "
+                    + result.verification.getMismatches().size() + " mismatches"
+                    + (result.verification.getReport() != null ? ", see " + result.verification.getReport().getAbsolutePath() : ""));
+        }
+        return result.failed > 0 || mismatches || result.cancelled ? EXIT_INCOMPLETE : EXIT_OK;
+    }
+
+    private boolean matchesGlobs(BackupFile file) {
+        if (this.globs.isEmpty()) return true;
+        String path = file.relativePath.isEmpty() ? file.domain : file.domain + BackupPathUtils.SEPARATOR + file.relativePath;
+        return this.globs.stream().anyMatch(glob -> glob.matcher(path).matches());
+    }
+
+    private int check(ITunesBackup backup) throws DatabaseConnectionException, InterruptedException {
+        BackupIntegrityChecker checker = this.threads != null ? new BackupIntegrityChecker(this.threads) : new BackupIntegrityChecker();
+        ProgressPrinter progress = new ProgressPrinter();
+        checker.setProgressListener((filesChecked, bytesHashed) -> progress.progress(filesChecked, -1, bytesHashed, -1));
+
+        BackupIntegrityChecker.Result result = checker.check(backup);
+        for (BackupIntegrityChecker.Problem problem : result.problems) {
+            this.out.println(String.join("\t",
+                    problem.kind.name(),
+                    problem.file.fileID,
+                    problem.file.domain,
+                    problem.file.relativePath,
+                    problem.expected,
+                    problem.actual));
+        }
+        this.err.println(result);
+        return result.problems.isEmpty() ? EXIT_OK : EXIT_INCOMPLETE;
+    }
+
+    /**
+     * Opens the backup given as first argument and cleans it up after the command, which deletes the decrypted database
+     */
+    private int withBackup(BackupCommand command) throws CommandException, DatabaseConnectionException, InterruptedException {
+        ITunesBackup backup = this.openBackup(this.arguments.get(1));
+        // It would be built in the background, which exiting cuts off, so searches scan the Files table
+        backup.setSearchIndexEnabled(false);
+        try {
+            return command.run(backup);
+        } finally {
+            backup.cleanUp();
+        }
+    }
+
+    private ITunesBackup openBackup(String name) throws CommandException {
+        File directory = new File(name);
+        if (!new File(directory, "Manifest.plist").isFile()) {
+            directory = ITunesBackup.getBackupDirectories(this.getRoots()).stream()
+                    .filter(dir -> dir.getName().equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new CommandException("No backup found: " + name));
+        }
+
+        ITunesBackup backup;
+        try {
+            backup = new ITunesBackup(directory);
+        } catch (FileNotFoundException e) {
+            throw new CommandException("The following file was not found: " + e.getMessage());
+        } catch (BackupReadException e) {
+            throw new CommandException("The backup could not be read: " + e.getMessage());
+        }
+
+        if (backup.isLocked()) {
+            try {
+                this.unlock(backup);
+            } catch (CommandException e) {
+                backup.cleanUp();
+                throw e;
+            }
+        }
+        return backup;
+    }
+
+    private void unlock(ITunesBackup backup) throws CommandException {
+        if (backup.manifest.getKeyBag().isEmpty()) throw new CommandException("The backup is encrypted, but has no key bag");
+
+        String password;
+        try {
+            if (this.passwordFile != null) {
+                try (BufferedReader reader = Files.newBufferedReader(this.passwordFile.toPath(), StandardCharsets.UTF_8)) {
+                    password = reader.readLine();
+                }
+            } else if (this.passwordFromStdin) {
+                password = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+            } else {
+                throw new CommandException("The backup is encrypted, use --password-file or --password-stdin");
+            }
+        } catch (IOException e) {
+            throw new CommandException("The password could not be read: " + e.getMessage());
+        }
+        if (password == null) throw new CommandException("No password was given");
+
+        try {
+            backup.manifest.getKeyBag().get().unlock(password);
+            backup.decryptDatabase();
+        } catch (InvalidKeyException e) {
+            throw new CommandException("The given password is not valid");
+        } catch (UnsupportedCryptoException e) {
+            throw new CommandException("Your system doesn't support the necessary cryptography");
+        } catch (BackupReadException | NotUnlockedException | IOException e) {
+            e.printStackTrace();
+            throw new CommandException("The backup database could not be decrypted: " + e.getMessage());
+        }
+    }
+
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KiB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GiB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    /**
+     * Prints the progress to stderr at most every few seconds. Called from the worker threads.
+     */
+    private class ProgressPrinter implements FileExtractor.ProgressListener {
+        private long lastPrinted = System.currentTimeMillis();
+
+        @Override
+        public synchronized void progress(long filesDone, long filesTotal, long bytesDone, long bytesTotal) {
+            long now = System.currentTimeMillis();
+            if (now - lastPrinted < PROGRESS_INTERVAL) return;
+            lastPrinted = now;
+
+            err.println(filesDone + (filesTotal >= 0 ? " of " + filesTotal : "") + " files, "
+                    + formatSize(bytesDone) + (bytesTotal >= 0 ? " of " + formatSize(bytesTotal) : ""));
+        }
+    }
+
+    @FunctionalInterface
+    private interface BackupCommand {
+        int run(ITunesBackup backup) throws DatabaseConnectionException, InterruptedException;
+    }
+
+    private static class UsageException extends Exception {
+        UsageException(String message) {
+            super(message);
+        }
+    }
+
+    private static class CommandException extends Exception {
+        CommandException(String message) {
+            super(message);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import javafx.beans.property.*;
 import javafx.scene.image.Image;
 import me.maxih.itunes_backup_explorer.ITunesBackupExplorer;
 import me.maxih.itunes_backup_explorer.api.BackupFile;
+import me.maxih.itunes_backup_explorer.api.BackupInfo;
 import me.maxih.itunes_backup_explorer.util.BackupPathUtils;
 
 import java.io.ByteArrayInputStream;
@@ -44,8 +45,11 @@ public class BackupFileEntry {
         this.pathLevel = BackupPathUtils.getPathLevel(file.relativePath);
 
         String appID = file.domain.startsWith("AppDomain-") ? file.domain.substring("AppDomain-".length()) : null;
-        if (file.relativePath.equals("") && appID != null && file.backup.getBackupInfo().map(info -> info.applications.containsKey(appID)).orElse(false)) {
-            byte[] imageData = file.backup.getBackupInfo().get().applications.get(appID).placeholderIcon.bytes();
+        Optional<BackupInfo.ApplicationInfo> app = file.relativePath.equals("") && appID != null
+                ? file.backup.getBackupInfo().flatMap(info -> info.getApplication(appID))
+                : Optional.empty();
+        if (app.isPresent()) {
+            byte[] imageData = app.get().placeholderIcon.bytes();
             ByteArrayInputStream imageStream = new ByteArrayInputStream(imageData);
             this.icon = new Image(imageStream);
         } else {
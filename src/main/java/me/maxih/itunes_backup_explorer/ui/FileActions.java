@@ -1,5 +1,7 @@
 package me.maxih.itunes_backup_explorer.ui;
 
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.scene.control.Button;
 import javafx.scene.control.MenuItem;
 import javafx.scene.control.TextArea;
@@ -12,9 +14,13 @@ import me.maxih.itunes_backup_explorer.api.*;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 public class FileActions {
@@ -50,6 +56,142 @@ public class FileActions {
         }
     }
 
+    /**
+     * Extracts the files with their domain and relative path below the destination, showing the progress.
+     */
+    public static void exportFiles(List<BackupFile> files, File destination) {
+        FileExtractor extractor = new FileExtractor()
+                .setCopyMode(PreferencesController.getLinkUnencryptedFiles() ? ContentCopyMode.LINK : ContentCopyMode.TRANSFER)
+                .setVerify(PreferencesController.getVerifyExports());
+
+        Task<FileExtractor.Result> extractTask = new Task<>() {
+            @Override
+            protected FileExtractor.Result call() throws Exception {
+                ButtonType skipButtonType = new ButtonType("Skip", ButtonBar.ButtonData.NEXT_FORWARD);
+                ButtonType skipAllExistingButtonType = new ButtonType("Skip all existing", ButtonBar.ButtonData.NEXT_FORWARD);
+                AtomicBoolean skipExisting = new AtomicBoolean(false);
+
+                extractor.setProgressListener((filesDone, filesTotal, bytesDone, bytesTotal) -> {
+                    if (bytesTotal > 0) updateProgress(bytesDone, bytesTotal);
+                    else updateProgress(filesDone, filesTotal);
+                });
+
+                extractor.setErrorHandler((file, exception) -> {
+                    try {
+                        if (exception instanceof FileAlreadyExistsException) {
+                            if (skipExisting.get()) return FileExtractor.Decision.CONTINUE;
+                            String existing = ((FileAlreadyExistsException) exception).getFile();
+                            if (existing == null) existing = "";
+
+                            Optional<ButtonType> response = showFileExportError(
+                                    "File already exists:\n" + existing, skipButtonType, skipAllExistingButtonType, ButtonType.CANCEL);
+                            if (response.isEmpty() || response.get() == ButtonType.CANCEL) return FileExtractor.Decision.ABORT;
+                            if (response.get() == skipAllExistingButtonType) skipExisting.set(true);
+                            return FileExtractor.Decision.CONTINUE;
+                        }
+
+                        exception.printStackTrace();
+                        Optional<ButtonType> response = showFileExportError(
+                                exception.getMessage() + "\nContinue?", ButtonType.YES, ButtonType.CANCEL);
+                        if (response.isEmpty() || response.get() == ButtonType.CANCEL) return FileExtractor.Decision.ABORT;
+                        return FileExtractor.Decision.CONTINUE;
+                    } catch (ExecutionException | InterruptedException e) {
+                        return FileExtractor.Decision.ABORT;
+                    }
+                });
+
+                return extractor.extract(files, destination, true);
+            }
+        };
+
+        extractTask.setOnSucceeded(event -> {
+            ExportVerification verification = extractTask.getValue().verification;
+            if (verification == null || verification.getMismatches().isEmpty()) return;
+
+            File report = verification.getReport();
+            Dialogs.showAlert(Alert.AlertType.WARNING, verification.getMismatches().size() + " of " + verification.getVerified()
+                    + " exported files don't match the backup database."
+                    + (report != null ? "\nThe mismatches are listed in " + report.getAbsolutePath() : ""), ButtonType.OK);
+        });
+
+        Dialogs.ProgressAlert progress = new Dialogs.ProgressAlert("Extracting...", extractTask, () -> {
+            extractor.cancel();
+            extractTask.cancel();
+        });
+        new Thread(extractTask).start();
+        progress.showAndWait();
+    }
+
+    /**
+     * Asks for an archive file and writes the files into it with their domain and relative path, showing the progress.
+     */
+    public static void exportToArchive(List<BackupFile> files, Window chooserOwnerWindow) {
+        FileChooser chooser = new FileChooser();
+        FileChooser.ExtensionFilter zipFilter = new FileChooser.ExtensionFilter("ZIP archive", "*.zip");
+        FileChooser.ExtensionFilter tarFilter = new FileChooser.ExtensionFilter("TAR archive", "*.tar");
+        chooser.getExtensionFilters().addAll(zipFilter, tarFilter);
+        chooser.setInitialFileName("export.zip");
+        File chosenFile = chooser.showSaveDialog(chooserOwnerWindow);
+        if (chosenFile == null) return;
+
+        ArchiveExporter.Format format = ArchiveExporter.Format.fromFileName(chosenFile.getName());
+        if (format == null) {
+            format = chooser.getSelectedExtensionFilter() == tarFilter ? ArchiveExporter.Format.TAR : ArchiveExporter.Format.ZIP;
+            chosenFile = new File(chosenFile.getParentFile(), chosenFile.getName() + "." + format.extension);
+        }
+        File archive = chosenFile;
+        ArchiveExporter.Format archiveFormat = format;
+
+        ArchiveExporter exporter = new ArchiveExporter();
+
+        Task<FileExtractor.Result> exportTask = new Task<>() {
+            @Override
+            protected FileExtractor.Result call() throws Exception {
+                exporter.setProgressListener((filesDone, filesTotal, bytesDone, bytesTotal) -> {
+                    if (bytesTotal > 0) updateProgress(bytesDone, bytesTotal);
+                    else updateProgress(filesDone, filesTotal);
+                });
+
+                exporter.setErrorHandler((file, exception) -> {
+                    exception.printStackTrace();
+                    try {
+                        Optional<ButtonType> response = showFileExportError(
+                                file.domain + ":" + file.relativePath + "\n" + exception.getMessage() + "\nContinue?",
+                                ButtonType.YES, ButtonType.CANCEL);
+                        if (response.isEmpty() || response.get() == ButtonType.CANCEL) return FileExtractor.Decision.ABORT;
+                        return FileExtractor.Decision.CONTINUE;
+                    } catch (ExecutionException | InterruptedException e) {
+                        return FileExtractor.Decision.ABORT;
+                    }
+                });
+
+                return exporter.export(files, archive, archiveFormat);
+            }
+        };
+
+        exportTask.setOnFailed(event -> {
+            Throwable exception = exportTask.getException();
+            exception.printStackTrace();
+            Dialogs.showAlert(Alert.AlertType.ERROR, "The archive could not be written: " + exception.getMessage(), ButtonType.OK);
+        });
+
+        Dialogs.ProgressAlert progress = new Dialogs.ProgressAlert("Exporting...", exportTask, exporter::cancel);
+        new Thread(exportTask).start();
+        progress.showAndWait();
+    }
+
+    private static Optional<ButtonType> showFileExportError(String msg, ButtonType... buttonTypes) throws ExecutionException, InterruptedException {
+        Task<Optional<ButtonType>> alertTask = new Task<>() {
+            @Override
+            protected Optional<ButtonType> call() {
+                return new Alert(Alert.AlertType.ERROR, msg, buttonTypes).showAndWait();
+            }
+        };
+
+        Platform.runLater(alertTask);
+        return alertTask.get();
+    }
+
     public static void replaceFile(BackupFile file, Window chooserOwnerWindow) {
         FileChooser chooser = new FileChooser();
         String ext = file.getFileExtension();
@@ -8,9 +8,9 @@ import javafx.stage.DirectoryChooser;
 import me.maxih.itunes_backup_explorer.api.*;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 public class FileSearchTabController {
@@ -80,15 +80,22 @@ public class FileSearchTabController {
 
         if (destination == null || !destination.exists()) return;
 
-        this.filesTable.getItems().forEach(backupFile -> {
-            if (backupFile.getFile().isEmpty()) return;
-            try {
-                backupFile.getFile().get().extractToFolder(destination, true);
-            } catch (IOException | BackupReadException | NotUnlockedException | UnsupportedCryptoException e) {
-                e.printStackTrace();
-                Dialogs.showAlert(Alert.AlertType.ERROR, e.getMessage(), ButtonType.OK);
-            }
-        });
+        FileActions.exportFiles(getMatchingFiles(), destination);
+    }
+
+    @FXML
+    public void exportMatchingToArchive() {
+        if (this.filesTable.getItems().size() == 0) return;
+
+        FileActions.exportToArchive(getMatchingFiles(), this.filesTable.getScene().getWindow());
+    }
+
+    private List<BackupFile> getMatchingFiles() {
+        return this.filesTable.getItems().stream()
+                .map(BackupFileEntry::getFile)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
     }
 
     public void tabShown(ITunesBackup backup) {
@@ -96,5 +103,6 @@ public class FileSearchTabController {
 
         this.filesTable.setItems(null);
         this.selectedBackup = backup;
+        backup.prepareSearchIndex();
     }
 }
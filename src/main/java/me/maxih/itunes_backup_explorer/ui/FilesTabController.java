@@ -1,6 +1,5 @@
 package me.maxih.itunes_backup_explorer.ui;
 
-import javafx.application.Platform;
 import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.geometry.Pos;
@@ -14,11 +13,7 @@ import me.maxih.itunes_backup_explorer.util.BackupPathUtils;
 import me.maxih.itunes_backup_explorer.util.CollectionUtils;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.channels.ClosedByInterruptException;
-import java.nio.file.FileAlreadyExistsException;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -280,27 +275,44 @@ public class FilesTabController {
         File destination = chooser.showDialog(splitPane.getScene().getWindow());
         if (destination == null) return;
 
-        List<BackupFile> selectedFiles = flattenAllChildren(filesTreeView.getRoot())
+        FileActions.exportFiles(getSelectedFiles(), destination);
+    }
+
+    @FXML
+    public void exportSelectedFilesToArchive() {
+        FileActions.exportToArchive(getSelectedFiles(), splitPane.getScene().getWindow());
+    }
+
+    private List<BackupFile> getSelectedFiles() {
+        return flattenAllChildren(filesTreeView.getRoot())
                 .map(TreeItem::getValue)
                 .filter(entry -> entry.getSelection() != BackupFileEntry.Selection.NONE)
                 .map(BackupFileEntry::getFile)
                 .filter(Optional::isPresent)
                 .map(Optional::get)
                 .collect(Collectors.toList());
-
-        Task<Void> extractTask = exportFiles(selectedFiles, destination);
-
-        Dialogs.ProgressAlert progress = new Dialogs.ProgressAlert("Extracting...", extractTask, true);
-        new Thread(extractTask).start();
-        progress.showAndWait();
     }
 
     @FXML
     public void exportSelectedDomains() {
+        List<BackupFile> selectedFiles = getSelectedDomainFiles();
+        if (selectedFiles == null) return;
+
         DirectoryChooser chooser = new DirectoryChooser();
         File destination = chooser.showDialog(splitPane.getScene().getWindow());
         if (destination == null) return;
 
+        FileActions.exportFiles(selectedFiles, destination);
+    }
+
+    @FXML
+    public void exportSelectedDomainsToArchive() {
+        List<BackupFile> selectedFiles = getSelectedDomainFiles();
+        if (selectedFiles == null) return;
+        FileActions.exportToArchive(selectedFiles, splitPane.getScene().getWindow());
+    }
+
+    private List<BackupFile> getSelectedDomainFiles() {
         String[] selectedDomains = flattenAllChildren(domainsTreeView.getRoot())
                 .map(TreeItem::getValue)
                 .filter(entry -> entry.getSelection() != BackupFileEntry.Selection.NONE)
@@ -317,61 +329,7 @@ public class FilesTabController {
             e.printStackTrace();
             Dialogs.showAlert(Alert.AlertType.ERROR, e.getMessage());
         }
-
-        Task<Void> extractTask = exportFiles(selectedFiles, destination);
-
-        Dialogs.ProgressAlert progress = new Dialogs.ProgressAlert("Extracting...", extractTask, true);
-        new Thread(extractTask).start();
-        progress.showAndWait();
-    }
-
-    private Task<Void> exportFiles(List<BackupFile> files, File destination) {
-        return new Task<>() {
-            @Override
-            protected Void call() throws Exception {
-                ButtonType skipButtonType = new ButtonType("Skip", ButtonBar.ButtonData.NEXT_FORWARD);
-                ButtonType skipAllExistingButtonType = new ButtonType("Skip all existing", ButtonBar.ButtonData.NEXT_FORWARD);
-                boolean skipExisting = false;
-
-                for (int i = 0; i < files.size(); i++) {
-                    try {
-                        if (Thread.interrupted()) break;
-                        files.get(i).extractToFolder(destination, true);
-                        updateProgress(i, files.size());
-                    } catch (ClosedByInterruptException e) {
-                        break;
-                    } catch (FileAlreadyExistsException e) {
-                        if (skipExisting) continue;
-                        String file = e.getFile();
-                        if (file == null) file = "";
-
-                        Optional<ButtonType> response = showFileExportError(
-                                "File already exists:\n" + file, skipButtonType, skipAllExistingButtonType, ButtonType.CANCEL);
-                        if (response.isEmpty() || response.get() == ButtonType.CANCEL) break;
-                        if (response.get() == skipAllExistingButtonType) skipExisting = true;
-                    } catch (IOException | BackupReadException | NotUnlockedException | UnsupportedCryptoException e) {
-                        e.printStackTrace();
-                        Optional<ButtonType> response = showFileExportError(
-                                e.getMessage() + "\nContinue?", ButtonType.YES, ButtonType.CANCEL);
-                        if (response.isEmpty() || response.get() == ButtonType.CANCEL) break;
-                    }
-                }
-
-                return null;
-            }
-        };
-    }
-
-    private Optional<ButtonType> showFileExportError(String msg, ButtonType... buttonTypes) throws ExecutionException, InterruptedException {
-        Task<Optional<ButtonType>> alertTask = new Task<>() {
-            @Override
-            protected Optional<ButtonType> call() {
-                return new Alert(Alert.AlertType.ERROR, msg, buttonTypes).showAndWait();
-            }
-        };
-
-        Platform.runLater(alertTask);
-        return alertTask.get();
+        return selectedFiles;
     }
 
 }
@@ -1,28 +1,34 @@
 package me.maxih.itunes_backup_explorer.ui;
 
 import javafx.fxml.FXML;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.TextArea;
 import javafx.stage.Stage;
-import me.maxih.itunes_backup_explorer.ITunesBackupExplorer;
+import me.maxih.itunes_backup_explorer.api.DecryptedManifestCache;
+import me.maxih.itunes_backup_explorer.util.AppPreferences;
 
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.prefs.Preferences;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class PreferencesController {
-    private static final Preferences PREFERENCES = Preferences.userNodeForPackage(ITunesBackupExplorer.class);
+    private static final Preferences PREFERENCES = AppPreferences.NODE;
 
-    private static final String DEFAULT_ROOTS = Stream.of(
-            Paths.get(System.getProperty("user.home"), "AppData\\Roaming\\Apple Computer\\MobileSync\\Backup"),
-            Paths.get(System.getProperty("user.home"), "Apple\\MobileSync\\Backup"),
-            Paths.get(System.getProperty("user.home"), "Library/Application Support/MobileSync/Backup")  // macOS
-    ).filter(Files::exists).map(Path::toString).collect(Collectors.joining("\n"));
+    public static boolean getLinkUnencryptedFiles() {
+        return PREFERENCES.getBoolean("LinkUnencryptedFiles", false);
+    }
+
+    public static boolean getVerifyExports() {
+        return PREFERENCES.getBoolean("VerifyExports", false);
+    }
 
-    public static String[] getBackupRoots() {
-        return PREFERENCES.get("BackupRoots", DEFAULT_ROOTS).split("\\n");
+    public static boolean getKeepDecryptedDatabases() {
+        return PREFERENCES.getBoolean("KeepDecryptedDatabases", true);
+    }
+
+    /**
+     * Applies the preference to the cache of decrypted databases, which otherwise keeps them until the program is closed
+     */
+    public static void applyKeepDecryptedDatabases() {
+        DecryptedManifestCache.setDiskBudget(getKeepDecryptedDatabases() ? DecryptedManifestCache.DEFAULT_DISK_BUDGET : 0);
     }
 
 
@@ -31,15 +37,32 @@ public class PreferencesController {
     @FXML
     public TextArea backupRootsTextArea;
 
+    @FXML
+    public CheckBox linkUnencryptedFilesCheckBox;
+
+    @FXML
+    public CheckBox verifyExportsCheckBox;
+
+    @FXML
+    public CheckBox keepDecryptedDatabasesCheckBox;
+
     @FXML
     public void initialize() {
-        this.backupRootsTextArea.setText(PREFERENCES.get("BackupRoots", DEFAULT_ROOTS));
+        this.backupRootsTextArea.setText(AppPreferences.getBackupRootsText());
+        this.linkUnencryptedFilesCheckBox.setSelected(getLinkUnencryptedFiles());
+        this.verifyExportsCheckBox.setSelected(getVerifyExports());
+        this.keepDecryptedDatabasesCheckBox.setSelected(getKeepDecryptedDatabases());
     }
 
     @FXML
     public void save() {
-        if (!backupRootsTextArea.getText().equals(PREFERENCES.get("BackupRoots", DEFAULT_ROOTS))) {
-            PREFERENCES.put("BackupRoots", backupRootsTextArea.getText());
+        PREFERENCES.putBoolean("LinkUnencryptedFiles", linkUnencryptedFilesCheckBox.isSelected());
+        PREFERENCES.putBoolean("VerifyExports", verifyExportsCheckBox.isSelected());
+        PREFERENCES.putBoolean("KeepDecryptedDatabases", keepDecryptedDatabasesCheckBox.isSelected());
+        applyKeepDecryptedDatabases();
+
+        if (!backupRootsTextArea.getText().equals(AppPreferences.getBackupRootsText())) {
+            AppPreferences.setBackupRootsText(backupRootsTextArea.getText());
             if (this.reloadCallback != null) this.reloadCallback.run();
         }
 
@@ -53,9 +76,13 @@ public class PreferencesController {
 
     @FXML
     public void resetToDefaults() {
-        String currentRoots = PREFERENCES.get("BackupRoots", DEFAULT_ROOTS);
-        if (!currentRoots.equals(DEFAULT_ROOTS)) {
-            PREFERENCES.remove("BackupRoots");
+        PREFERENCES.remove("LinkUnencryptedFiles");
+        PREFERENCES.remove("VerifyExports");
+        PREFERENCES.remove("KeepDecryptedDatabases");
+        applyKeepDecryptedDatabases();
+
+        if (!AppPreferences.getBackupRootsText().equals(AppPreferences.DEFAULT_BACKUP_ROOTS)) {
+            AppPreferences.resetBackupRoots();
             if (this.reloadCallback != null) this.reloadCallback.run();
         }
 
@@ -1,36 +1,48 @@
 package me.maxih.itunes_backup_explorer.ui;
 
 import javafx.application.Platform;
+import javafx.concurrent.Service;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
-import javafx.scene.Node;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Label;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.Tooltip;
 import javafx.scene.control.*;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import me.maxih.itunes_backup_explorer.ITunesBackupExplorer;
+import me.maxih.itunes_backup_explorer.api.BackupIntegrityChecker;
 import me.maxih.itunes_backup_explorer.api.BackupReadException;
+import me.maxih.itunes_backup_explorer.api.BackupSummary;
+import me.maxih.itunes_backup_explorer.api.DecryptedManifestCache;
 import me.maxih.itunes_backup_explorer.api.ITunesBackup;
+import me.maxih.itunes_backup_explorer.api.LinkTree;
 import me.maxih.itunes_backup_explorer.api.NotUnlockedException;
 import me.maxih.itunes_backup_explorer.api.UnsupportedCryptoException;
+import me.maxih.itunes_backup_explorer.util.AppPreferences;
 
 import java.awt.*;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.security.InvalidKeyException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class WindowController {
     static final DateFormat BACKUP_DATE_FMT = new SimpleDateFormat("dd.MM.yyyy HH:mm");
@@ -38,8 +50,47 @@ public class WindowController {
     List<ITunesBackup> backups = new ArrayList<>();
     ITunesBackup selectedBackup;
     final Map<ITunesBackup, ToggleButton> sidebarButtons = new HashMap<>();
+    // Entries of backups which are only known from their cached summary so far
+    final Map<File, ToggleButton> pendingSidebarButtons = new HashMap<>();
+    // A pending entry that was clicked, selected as soon as its backup is loaded
+    File selectWhenLoaded;
+
+    final Service<Void> backupLoader = new Service<>() {
+        @Override
+        protected Task<Void> createTask() {
+            List<File> roots = AppPreferences.getBackupRoots();
+
+            return new Task<>() {
+                @Override
+                protected Void call() {
+                    List<BackupSummary> summaries = ITunesBackup.getBackupDirectories(roots).stream()
+                            .map(BackupSummary::readCached)
+                            .flatMap(Optional::stream)
+                            .sorted(Comparator.comparing((BackupSummary summary) -> summary.date).reversed())
+                            .collect(Collectors.toList());
+                    // Queued before any loaded backup, so the loaded backups always replace their cached entries
+                    Platform.runLater(() -> {
+                        if (!isCancelled()) summaries.forEach(summary -> loadBackupSummary(summary));
+                    });
+
+                    ITunesBackup.getBackups(roots, backup -> {
+                        Platform.runLater(() -> {
+                            if (isCancelled() || isLoaded(backup.directory)) return;
+                            loadBackup(backup);
+                            backupLoaded(backup);
+                        });
+                        // Only for the next start, so the entry is posted first
+                        BackupSummary.update(backup);
+                    }, (directory, exception) -> Platform.runLater(() -> {
+                        if (!isCancelled()) loadBackupError(directory, exception);
+                    }));
+                    return null;
+                }
+            };
+        }
+    };
 
-    List<Node> lockedTabPages = new ArrayList<>();
+    List<Tab> lockedTabs = new ArrayList<>();
 
     @FXML
     VBox backupSidebarBox;
@@ -53,26 +104,32 @@ public class WindowController {
     InfoTabController infoTabPageController;
 
     @FXML
-    AnchorPane fileSearchTabPage;
-    @FXML
+    Tab fileSearchTab;
+    // Null until the tab is first selected
     FileSearchTabController fileSearchTabPageController;
 
     @FXML
-    AnchorPane filesTabPage;
-    @FXML
+    Tab filesTab;
+    // Null until the tab is first selected
     FilesTabController filesTabPageController;
 
 
     @FXML
     public void initialize() {
-        this.lockedTabPages = Arrays.asList(this.filesTabPage, this.fileSearchTabPage);
+        PreferencesController.applyKeepDecryptedDatabases();
+        this.lockedTabs = Arrays.asList(this.filesTab, this.fileSearchTab);
 
         this.tabPane.getSelectionModel().selectedItemProperty().addListener((observable, oldTab, newTab) -> {
-            Node tabPage = newTab.getContent();
-            if (this.lockedTabPages.contains(tabPage) && !this.tryUnlock())
+            if (this.lockedTabs.contains(newTab) && !this.tryUnlock())
                 this.tabPane.getSelectionModel().select(oldTab);
-            else if (tabPage == this.filesTabPage) this.filesTabPageController.tabShown(this.selectedBackup);
-            else if (tabPage == this.fileSearchTabPage) this.fileSearchTabPageController.tabShown(this.selectedBackup);
+            else this.tabShown(newTab, this.selectedBackup);
+        });
+
+        this.backupLoader.setOnSucceeded(event -> this.allBackupsLoaded());
+        this.backupLoader.setOnFailed(event -> {
+            this.backupLoader.getException().printStackTrace();
+            this.allBackupsLoaded();
+            Dialogs.showAlert(Alert.AlertType.ERROR, "The backups could not be loaded: " + this.backupLoader.getException().getMessage());
         });
 
         this.tabPane.setVisible(false);
@@ -80,29 +137,116 @@ public class WindowController {
     }
 
     public void cleanUp() {
+        this.backupLoader.cancel();
         this.backups.forEach(ITunesBackup::cleanUp);
+        DecryptedManifestCache.clear();
     }
 
-    public void loadBackup(ITunesBackup backup) {
-        ToggleButton backupEntry = new ToggleButton(backup.manifest.deviceName + "\n" + BACKUP_DATE_FMT.format(
-                backup.getBackupInfo().map(info -> info.lastBackupDate).orElse(backup.manifest.date)));
+    /**
+     * Shows the backup in the tab, loading the content of the tab if it is shown for the first time.
+     */
+    private void tabShown(Tab tab, ITunesBackup backup) {
+        if (tab == this.filesTab) {
+            if (this.filesTabPageController == null) this.filesTabPageController = this.loadTabContent(tab, "files_tab.fxml");
+            if (this.filesTabPageController != null) this.filesTabPageController.tabShown(backup);
+        } else if (tab == this.fileSearchTab) {
+            if (this.fileSearchTabPageController == null) this.fileSearchTabPageController = this.loadTabContent(tab, "file_search_tab.fxml");
+            if (this.fileSearchTabPageController != null) this.fileSearchTabPageController.tabShown(backup);
+        }
+    }
+
+    /**
+     * @return The controller of the loaded content, or null if it could not be loaded
+     */
+    private <T> T loadTabContent(Tab tab, String fxml) {
+        FXMLLoader fxmlLoader = new FXMLLoader(ITunesBackupExplorer.class.getResource(fxml));
+        try {
+            tab.setContent(fxmlLoader.load());
+            return fxmlLoader.getController();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Dialogs.showAlert(Alert.AlertType.ERROR, e.getMessage());
+            return null;
+        }
+    }
+
+    private ToggleButton createSidebarButton(File directory) {
+        ToggleButton backupEntry = new ToggleButton();
         backupEntry.getStyleClass().add("sidebar-button");
-        backupEntry.setOnAction(this::backupSelected);
         backupEntry.setMaxWidth(Integer.MAX_VALUE);
         backupEntry.setPrefHeight(60);
         backupEntry.setAlignment(Pos.BASELINE_LEFT);
         backupEntry.setPadding(new Insets(0, 24, 0, 24));  // top right bottom left
-        backupEntry.setId(backup.directory.getName());
+        backupEntry.setId(directory.getName());
 
         MenuItem openBackupDirectory = new MenuItem("Open backup directory");
         openBackupDirectory.setOnAction(event -> {
             try {
-                Desktop.getDesktop().browse(backup.directory.toURI());
+                Desktop.getDesktop().browse(directory.toURI());
             } catch (IOException e) {
                 e.printStackTrace();
             }
         });
 
+        backupEntry.setContextMenu(new ContextMenu(openBackupDirectory));
+        return backupEntry;
+    }
+
+    /**
+     * Shows a backup that has not been loaded yet, using its cached summary.
+     * Clicking it selects the backup as soon as it is loaded in the background.
+     */
+    public void loadBackupSummary(BackupSummary summary) {
+        ToggleButton backupEntry = createSidebarButton(summary.directory);
+        backupEntry.setText(summary.deviceName + "\n" + BACKUP_DATE_FMT.format(summary.getDisplayDate()));
+        if (summary.fileCount >= 0)
+            backupEntry.setTooltip(new Tooltip(String.format("%,d files, %.1f GB", summary.fileCount, summary.totalSize / (1024.0 * 1024 * 1024))));
+        backupEntry.setOnAction(event -> {
+            // Stays highlighted until the backup is loaded
+            this.pendingSidebarButtons.values().forEach(entry -> entry.setSelected(entry == backupEntry));
+            this.selectWhenLoaded = summary.directory;
+        });
+
+        this.pendingSidebarButtons.put(summary.directory, backupEntry);
+        this.backupSidebarBox.getChildren().add(backupEntry);
+    }
+
+    /**
+     * Shows a backup that could not be loaded. Clicking it shows the reason.
+     */
+    public void loadBackupError(File directory, Exception exception) {
+        ToggleButton pendingEntry = this.pendingSidebarButtons.remove(directory);
+        ToggleButton backupEntry = pendingEntry != null ? pendingEntry : createSidebarButton(directory);
+        if (directory.equals(this.selectWhenLoaded)) this.selectWhenLoaded = null;
+
+        String name = pendingEntry != null ? pendingEntry.getText().split("\n")[0] : directory.getName();
+        String message = exception instanceof FileNotFoundException
+                ? "The following file was not found: " + exception.getMessage()
+                : exception.getMessage();
+
+        backupEntry.getStyleClass().add("sidebar-button-error");
+        backupEntry.setText(name + "\nCould not be loaded");
+        backupEntry.setSelected(false);
+        backupEntry.setTooltip(new Tooltip(message));
+        backupEntry.setOnAction(event -> {
+            backupEntry.setSelected(false);
+            Dialogs.showAlert(Alert.AlertType.ERROR, "The backup in " + directory.getAbsolutePath() + " could not be loaded:\n" + message);
+        });
+
+        if (pendingEntry == null) this.backupSidebarBox.getChildren().add(backupEntry);
+    }
+
+    private boolean isLoaded(File directory) {
+        return this.backups.stream().anyMatch(backup -> backup.directory.equals(directory));
+    }
+
+    public void loadBackup(ITunesBackup backup) {
+        ToggleButton pendingEntry = this.pendingSidebarButtons.remove(backup.directory);
+        ToggleButton backupEntry = pendingEntry != null ? pendingEntry : createSidebarButton(backup.directory);
+        backupEntry.setText(backup.manifest.deviceName + "\n" + BACKUP_DATE_FMT.format(
+                backup.getBackupInfo().map(info -> info.lastBackupDate).orElse(backup.manifest.date)));
+        backupEntry.setOnAction(this::backupSelected);
+
         MenuItem closeBackup = new MenuItem("Close backup");
         closeBackup.setOnAction(event -> {
             backup.cleanUp();
@@ -114,23 +258,165 @@ public class WindowController {
             this.backupSidebarBox.getChildren().remove(backupEntry);
             this.sidebarButtons.remove(backup);
         });
-
-        ContextMenu backupContextMenu = new ContextMenu(openBackupDirectory, closeBackup);
-        backupEntry.setContextMenu(backupContextMenu);
+        if (!backup.manifest.encrypted) {
+            MenuItem browseAsFolders = new MenuItem("Browse as folders...");
+            browseAsFolders.setOnAction(event -> this.browseAsFolders(backup));
+            backupEntry.getContextMenu().getItems().add(browseAsFolders);
+        }
+        MenuItem checkIntegrity = new MenuItem("Check integrity...");
+        checkIntegrity.setOnAction(event -> this.checkIntegrity(backup));
+        backupEntry.getContextMenu().getItems().addAll(checkIntegrity, closeBackup);
 
         this.backups.add(backup);
-        this.backupSidebarBox.getChildren().add(backupEntry);
+        if (pendingEntry == null) this.backupSidebarBox.getChildren().add(backupEntry);
         this.sidebarButtons.put(backup, backupEntry);
     }
 
+    /**
+     * Creates or refreshes a tree of links to the files of an unencrypted backup and opens it.
+     */
+    private void browseAsFolders(ITunesBackup backup) {
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("Folder for the linked files");
+        File destination = chooser.showDialog(this.tabPane.getScene().getWindow());
+        if (destination == null) return;
+
+        LinkTree.LinkType linkType;
+        try {
+            // Hard links only work on the same file system
+            linkType = Files.getFileStore(backup.directory.toPath()).equals(Files.getFileStore(destination.toPath()))
+                    ? LinkTree.LinkType.HARD
+                    : LinkTree.LinkType.SYMBOLIC;
+        } catch (IOException e) {
+            e.printStackTrace();
+            Dialogs.showAlert(Alert.AlertType.ERROR, e.getMessage());
+            return;
+        }
+
+        LinkTree tree = new LinkTree(backup, destination, linkType);
+        Task<LinkTree.Result> linkTask = new Task<>() {
+            @Override
+            protected LinkTree.Result call() throws Exception {
+                return tree.refresh();
+            }
+        };
+
+        linkTask.setOnSucceeded(event -> {
+            LinkTree.Result result = linkTask.getValue();
+            System.out.println("Link tree " + destination.getAbsolutePath() + ": " + result.created + " created, "
+                    + result.updated + " updated, " + result.removed + " removed, " + result.unchanged + " unchanged, "
+                    + result.missing + " missing in the backup");
+            try {
+                Desktop.getDesktop().browse(destination.toURI());
+            } catch (IOException | UnsupportedOperationException e) {
+                e.printStackTrace();
+            }
+        });
+        linkTask.setOnFailed(event -> {
+            linkTask.getException().printStackTrace();
+            Dialogs.showAlert(Alert.AlertType.ERROR, "The links could not be created: " + linkTask.getException().getMessage());
+        });
+
+        Dialogs.ProgressAlert progress = new Dialogs.ProgressAlert("Linking files...", linkTask, false);
+        new Thread(linkTask).start();
+        progress.showAndWait();
+    }
+
+    /**
+     * Checks all content files of the backup and lists the files which are missing or damaged.
+     */
+    private void checkIntegrity(ITunesBackup backup) {
+        // The database of encrypted backups has to be decrypted first
+        this.selectBackup(backup);
+        if (!this.tryUnlock()) return;
+
+        BackupIntegrityChecker checker = new BackupIntegrityChecker();
+        Task<BackupIntegrityChecker.Result> checkTask = new Task<>() {
+            @Override
+            protected BackupIntegrityChecker.Result call() throws Exception {
+                return checker.check(backup);
+            }
+        };
+
+        checkTask.setOnSucceeded(event -> {
+            BackupIntegrityChecker.Result result = checkTask.getValue();
+            System.out.println("Integrity check of " + backup.directory.getName() + ": " + result);
+            if (result.cancelled) return;
+
+            if (result.problems.isEmpty()) {
+                Dialogs.showAlert(Alert.AlertType.INFORMATION, "No problems were found.\n\n" + result, ButtonType.OK);
+                return;
+            }
+
+            Alert alert = Dialogs.getAlert(Alert.AlertType.WARNING, result.toString(), ButtonType.CLOSE);
+            alert.setTitle("Integrity check");
+            alert.setHeaderText(result.problems.size() + " files are missing or damaged");
+
+            TextArea textArea = new TextArea(result.problems.stream()
+                    .map(BackupIntegrityChecker.Problem::toString)
+                    .collect(Collectors.joining("\n")));
+            textArea.setEditable(false);
+            textArea.setPrefRowCount(15);
+            textArea.setPrefColumnCount(80);
+
+            alert.getDialogPane().setContent(new VBox(10, new Label(result.toString()), textArea));
+            alert.showAndWait();
+        });
+        checkTask.setOnFailed(event -> {
+            checkTask.getException().printStackTrace();
+            Dialogs.showAlert(Alert.AlertType.ERROR, "The backup could not be checked: " + checkTask.getException().getMessage());
+        });
+
+        Dialogs.ProgressAlert progress = new Dialogs.ProgressAlert("Checking backup...", checkTask, checker::cancel);
+        new Thread(checkTask).start();
+        progress.showAndWait();
+    }
+
+    /**
+     * Shows all backups with a valid cached summary as soon as they are read,
+     * then loads the backups and replaces the cached entries as they arrive.
+     * Everything that touches the disk runs in the background, so the window is shown without waiting for it
+     * and stays responsive even if a backup root is slow to read. Loading again cancels a running load.
+     */
     public void loadBackups() {
+        this.backupLoader.cancel();
+
+        this.backups.forEach(ITunesBackup::cleanUp);
         this.backupSidebarBox.getChildren().clear();
         this.backups.clear();
-        for (String root : PreferencesController.getBackupRoots()) {
-            ITunesBackup.getBackups(new File(root)).forEach(this::loadBackup);
+        this.sidebarButtons.clear();
+        this.pendingSidebarButtons.clear();
+        this.selectWhenLoaded = null;
+        this.selectedBackup = null;
+        this.tabPane.setVisible(false);
+
+        this.backupLoader.restart();
+    }
+
+    private void backupLoaded(ITunesBackup backup) {
+        if (backup.directory.equals(this.selectWhenLoaded)) {
+            this.selectWhenLoaded = null;
+            this.selectBackup(backup);
+        } else if (this.selectedBackup == null && this.selectWhenLoaded == null
+                && this.backupSidebarBox.getChildren().get(0) == this.sidebarButtons.get(backup)) {
+            // Select the topmost backup as soon as it is available
+            this.selectBackup(backup);
         }
+    }
 
-        this.backups.stream().findFirst().ifPresent(this::selectBackup);
+    private void allBackupsLoaded() {
+        // Cached backups which are not there anymore
+        this.backupSidebarBox.getChildren().removeAll(this.pendingSidebarButtons.values());
+        this.pendingSidebarButtons.clear();
+        this.selectWhenLoaded = null;
+
+        if (this.selectedBackup == null) {
+            this.backupSidebarBox.getChildren().stream()
+                    .flatMap(node -> this.sidebarButtons.entrySet().stream().filter(entry -> entry.getValue() == node))
+                    .map(Map.Entry::getKey)
+                    .findFirst()
+                    .ifPresent(this::selectBackup);
+        }
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
@@ -169,11 +455,10 @@ public class WindowController {
 
         this.infoTabPageController.updateInformation(backup.manifest, backup.getBackupInfo().orElse(null));
 
-        Node selectedTabPage = this.tabPane.getSelectionModel().getSelectedItem().getContent();
-        if (this.lockedTabPages.contains(selectedTabPage) && !this.tryUnlock())
+        Tab selectedTab = this.tabPane.getSelectionModel().getSelectedItem();
+        if (this.lockedTabs.contains(selectedTab) && !this.tryUnlock())
             this.tabPane.getSelectionModel().select(0);
-        else if (selectedTabPage == this.filesTabPage) this.filesTabPageController.tabShown(backup);
-        else if (selectedTabPage == this.fileSearchTabPage) this.fileSearchTabPageController.tabShown(backup);
+        else this.tabShown(selectedTab, backup);
         this.tabPane.setVisible(true);
     }
 
@@ -0,0 +1,56 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.prefs.Preferences;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The stored preferences of the application that are needed with and without the window.
+ */
+public class AppPreferences {
+    /**
+     * The same node as Preferences.userNodeForPackage(ITunesBackupExplorer.class),
+     * without loading the JavaFX application class
+     */
+    public static final Preferences NODE = Preferences.userRoot().node("/me/maxih/itunes_backup_explorer");
+
+    private static final String BACKUP_ROOTS_KEY = "BackupRoots";
+
+    public static final String DEFAULT_BACKUP_ROOTS = Stream.of(
+            Paths.get(System.getProperty("user.home"), "AppData\\Roaming\\Apple Computer\\MobileSync\\Backup"),
+            Paths.get(System.getProperty("user.home"), "Apple\\MobileSync\\Backup"),
+            Paths.get(System.getProperty("user.home"), "Library/Application Support/MobileSync/Backup")  // macOS
+    ).filter(Files::exists).map(Path::toString).collect(Collectors.joining("\n"));
+
+    /**
+     * @return The backup roots, one per line
+     */
+    public static String getBackupRootsText() {
+        return NODE.get(BACKUP_ROOTS_KEY, DEFAULT_BACKUP_ROOTS);
+    }
+
+    public static void setBackupRootsText(String roots) {
+        NODE.put(BACKUP_ROOTS_KEY, roots);
+    }
+
+    public static void resetBackupRoots() {
+        NODE.remove(BACKUP_ROOTS_KEY);
+    }
+
+    public static List<File> getBackupRoots() {
+        return Arrays.stream(getBackupRootsText().split("\\n"))
+                .filter(root -> !root.isEmpty())
+                .map(File::new)
+                .collect(Collectors.toList());
+    }
+
+    private AppPreferences() {
+    }
+
+}
@@ -0,0 +1,95 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered output to an archive file, which can also overwrite headers that were written before
+ * and cut off an entry that could not be completed.
+ */
+class ArchiveOutput implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long flushedPosition = 0;
+
+    ArchiveOutput(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    long position() {
+        return this.flushedPosition + this.buffer.position();
+    }
+
+    void write(byte[] data) throws IOException {
+        this.write(data, 0, data.length);
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (length >= BUFFER_SIZE) {
+            this.flush();
+            this.writeFully(ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+
+        if (length > this.buffer.remaining()) this.flush();
+        this.buffer.put(data, offset, length);
+    }
+
+    void writeZeros(int count) throws IOException {
+        this.write(new byte[count]);
+    }
+
+    /**
+     * Overwrites bytes which were written before, without moving the current position.
+     */
+    void writeAt(long position, ByteBuffer data) throws IOException {
+        this.flush();
+        while (data.hasRemaining()) {
+            position += this.channel.write(data, position);
+        }
+    }
+
+    /**
+     * Drops everything written after the given position.
+     */
+    void truncate(long position) throws IOException {
+        if (position >= this.flushedPosition) {
+            // Only buffered bytes are dropped, the ones before the position are still needed
+            this.buffer.position((int) (position - this.flushedPosition));
+            return;
+        }
+
+        this.flush();
+        this.channel.truncate(position);
+        this.channel.position(position);
+        this.flushedPosition = position;
+    }
+
+    void flush() throws IOException {
+        this.buffer.flip();
+        this.writeFully(this.buffer);
+        this.buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            this.flushedPosition += this.channel.write(data);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            this.channel.close();
+        }
+    }
+}
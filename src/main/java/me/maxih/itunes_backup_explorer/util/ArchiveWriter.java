@@ -0,0 +1,67 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Writes entries one after another into an archive file.
+ * Only {@link #prepare} may be called from several threads, all other methods must be called from one thread.
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * @param name         The path of the directory inside the archive, without a trailing slash
+     * @param lastModified Modification time in seconds since the epoch
+     */
+    void writeDirectory(String name, long lastModified) throws IOException;
+
+    /**
+     * Turns the complete content of a small file into the form it is stored in, e.g. by compressing it.
+     * This is independent of the archive, so it can run on other threads while entries are written.
+     *
+     * @param compress Whether compressing is worth trying. It is not for data which is compressed already.
+     */
+    Prepared prepare(byte[] content, int length, boolean compress);
+
+    /**
+     * Writes a file entry with content from {@link #prepare}.
+     */
+    void writeEntry(String name, long lastModified, Prepared prepared) throws IOException;
+
+    /**
+     * Writes a file entry by streaming its content, without keeping it in memory.
+     * If reading the content fails, the incomplete entry is removed again before the exception is thrown.
+     *
+     * @param size The number of bytes in the content
+     */
+    void writeEntry(String name, long lastModified, long size, InputStream content, boolean compress) throws IOException;
+
+    /**
+     * Writes the end of the archive. It is not valid before this is called.
+     */
+    void finish() throws IOException;
+
+    class Prepared {
+        public final byte[] data;
+        public final int length;
+        public final long size;
+        public final long crc;
+        public final boolean compressed;
+
+        /**
+         * @param data       The stored data, which might be longer than length
+         * @param length     The number of stored bytes in data
+         * @param size       The size of the original content
+         * @param crc        The CRC-32 of the original content
+         * @param compressed Whether data is deflated
+         */
+        public Prepared(byte[] data, int length, long size, long crc, boolean compressed) {
+            this.data = data;
+            this.length = length;
+            this.size = size;
+            this.crc = crc;
+            this.compressed = compressed;
+        }
+    }
+}
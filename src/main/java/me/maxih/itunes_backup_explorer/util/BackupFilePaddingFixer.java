@@ -1,11 +1,15 @@
 package me.maxih.itunes_backup_explorer.util;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class BackupFilePaddingFixer {
     private static final int BUFFER_SIZE = 1024;
+    private static final int AES_BLOCK_SIZE = 16;
 
     /**
      * Removes padding from files that were originally encrypted using PKCS#7,
@@ -18,59 +22,83 @@ public class BackupFilePaddingFixer {
      * @throws IOException file not found or I/O error
      */
     public static void tryFixPadding(File file) throws IOException {
-        long actualSize = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            tryFixPadding(channel);
+        }
+    }
 
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            long position = raf.length();
+    /**
+     * Same as {@link #tryFixPadding(File)}, for a file that is already open
+     * @param channel the file to remove padding from, opened for reading and writing
+     * @return the size of the file afterwards
+     * @throws IOException I/O error
+     */
+    public static long tryFixPadding(FileChannel channel) throws IOException {
+        long actualSize = 0;
+        long size = channel.size();
 
-            outerLoop:
-            while (position > 0) {
-                position -= BUFFER_SIZE;
-                raf.seek(Math.max(0L, position));
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long end = size;
 
-                byte[] buffer = new byte[BUFFER_SIZE];
-                raf.readFully(buffer);
+        outerLoop:
+        while (end > 0) {
+            long start = Math.max(0L, end - BUFFER_SIZE);
+            buffer.clear().limit((int) (end - start));
+            readFully(channel, buffer, start);
 
-                for (int i = buffer.length - 1; i > 0; i--) {
-                    if (buffer[i] != 0x00) {
-                        actualSize = position + i + 1;
-                        break outerLoop;
-                    }
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) != 0x00) {
+                    actualSize = start + i + 1;
+                    break outerLoop;
                 }
             }
+            end = start;
+        }
 
-            if (actualSize == 0) return;
+        if (actualSize == 0) return size;
 
-            raf.seek(actualSize - 1);
-            int paddingNumber = raf.read();
+        ByteBuffer lastByte = ByteBuffer.allocate(1);
+        readFully(channel, lastByte, actualSize - 1);
+        int paddingNumber = lastByte.get(0) & 0xFF;
 
-            System.out.println("Assuming padding of " + paddingNumber + " bytes.");
+        System.out.println("Assuming padding of " + paddingNumber + " bytes.");
 
-            if (actualSize < paddingNumber) {
-                System.out.println("File is too small.");
-                return;
-            }
+        // PKCS#7 pads to the next full block, so anything else is part of the content
+        if (paddingNumber == 0 || paddingNumber > AES_BLOCK_SIZE) {
+            System.out.println("Padding number is not between 1 and " + AES_BLOCK_SIZE + ". File is not padded.");
+            return size;
+        }
 
-            if (actualSize % 16 != 0) {
-                System.out.println("Actual size is not a multiple of 16. File is not padded correctly.");
-                return;
-            }
+        if (actualSize < paddingNumber) {
+            System.out.println("File is too small.");
+            return size;
+        }
 
-            raf.seek(actualSize - paddingNumber);
+        if (actualSize % AES_BLOCK_SIZE != 0) {
+            System.out.println("Actual size is not a multiple of 16. File is not padded correctly.");
+            return size;
+        }
 
-            byte[] paddingBytes = new byte[paddingNumber];
-            raf.readFully(paddingBytes);
+        ByteBuffer paddingBytes = ByteBuffer.allocate(paddingNumber);
+        readFully(channel, paddingBytes, actualSize - paddingNumber);
 
-            for (int i = 0; i < paddingNumber; i++) {
-                if (paddingBytes[i] != paddingNumber) {
-                    System.out.println("Padding byte #" + i + " invalid: " + paddingBytes[i] + " != " + paddingNumber);
-                    return;
-                }
+        for (int i = 0; i < paddingNumber; i++) {
+            if ((paddingBytes.get(i) & 0xFF) != paddingNumber) {
+                System.out.println("Padding byte #" + i + " invalid: " + paddingBytes.get(i) + " != " + paddingNumber);
+                return size;
             }
+        }
 
-            actualSize -= paddingNumber;
+        actualSize -= paddingNumber;
+
+        channel.truncate(actualSize);
+        return actualSize;
+    }
 
-            raf.setLength(actualSize);
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new EOFException();
         }
     }
 
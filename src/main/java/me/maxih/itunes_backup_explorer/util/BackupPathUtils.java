@@ -41,6 +41,33 @@ public class BackupPathUtils {
         return INVALID_CHARACTERS.matcher(path).replaceAll("-");
     }
 
+    /**
+     * Converts a glob pattern for paths separated by {@link #SEPARATOR} into a regular expression.
+     * {@code *} matches any characters except the separator, {@code **} also matches the separator,
+     * {@code ?} matches a single character except the separator and a backslash escapes the next character.
+     */
+    public static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^").append(SEPARATOR).append("]*");
+                }
+            } else if (c == '?') {
+                regex.append("[^").append(SEPARATOR).append("]");
+            } else if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
     private BackupPathUtils() {
     }
 
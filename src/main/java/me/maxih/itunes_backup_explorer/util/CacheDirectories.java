@@ -0,0 +1,58 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class CacheDirectories {
+
+    private static final String APP_DIRECTORY_NAME = "iTunesBackupExplorer";
+
+    /**
+     * @return The per-user cache directory of this application, which might not exist yet
+     */
+    public static File getCacheRoot() {
+        String os = System.getProperty("os.name", "").toLowerCase();
+        String home = System.getProperty("user.home");
+        Path root;
+
+        if (os.startsWith("windows")) {
+            String localAppData = System.getenv("LOCALAPPDATA");
+            root = localAppData != null
+                    ? Paths.get(localAppData, APP_DIRECTORY_NAME, "Cache")
+                    : Paths.get(home, "AppData", "Local", APP_DIRECTORY_NAME, "Cache");
+        } else if (os.startsWith("mac")) {
+            root = Paths.get(home, "Library", "Caches", APP_DIRECTORY_NAME);
+        } else {
+            String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+            root = xdgCacheHome != null && !xdgCacheHome.isEmpty()
+                    ? Paths.get(xdgCacheHome, APP_DIRECTORY_NAME)
+                    : Paths.get(home, ".cache", APP_DIRECTORY_NAME);
+        }
+
+        return root.toFile();
+    }
+
+    /**
+     * Backup directories are usually named after the device's UDID,
+     * so the path is included to tell apart copies of a backup in different roots.
+     * @param backupDirectory The directory of the backup
+     * @return The cache directory for files belonging to this backup, which might not exist yet
+     */
+    public static File getBackupCacheDirectory(File backupDirectory) {
+        String path;
+        try {
+            path = backupDirectory.getCanonicalPath();
+        } catch (IOException e) {
+            path = backupDirectory.getAbsolutePath();
+        }
+
+        String name = backupDirectory.getName() + "-" + Integer.toHexString(path.hashCode());
+        return new File(new File(getCacheRoot(), "backups"), name);
+    }
+
+    private CacheDirectories() {
+    }
+
+}
@@ -0,0 +1,118 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import com.dd.plist.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses XML property lists like dd-plist does, but leaves out all <code>data</code> values
+ * without decoding them. Info.plist contains many large blobs (e.g. app icons), which are
+ * not needed most of the time.
+ */
+public class LightPListParser {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, false);
+    }
+
+    /**
+     * @param file An XML property list
+     * @return The root object without any data values,
+     * or null if the file is a binary property list which has to be parsed by dd-plist
+     * @throws IOException if the file could not be read or is not a valid XML property list
+     */
+    public static NSObject parse(File file) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            inputStream.mark(8);
+            byte[] magic = inputStream.readNBytes(6);
+            inputStream.reset();
+            if (new String(magic, StandardCharsets.US_ASCII).equals("bplist")) return null;
+
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(inputStream);
+            try {
+                // Skip the prolog with the DOCTYPE up to <plist>
+                while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    if (!reader.hasNext()) throw new IOException("Empty property list: " + file.getName());
+                }
+                if (!reader.getLocalName().equals("plist")) throw new IOException("Not a property list: " + file.getName());
+                if (reader.nextTag() != XMLStreamConstants.START_ELEMENT) return null;
+                return readValue(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | ParseException | NumberFormatException e) {
+            throw new IOException("Invalid property list: " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Reads the value at the current start element and leaves the reader at its end element.
+     * @return The value or null if it is data or of an unknown type
+     */
+    private static NSObject readValue(XMLStreamReader reader) throws XMLStreamException, ParseException {
+        switch (reader.getLocalName()) {
+            case "dict":
+                NSDictionary dict = new NSDictionary();
+                String key = null;
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (reader.getLocalName().equals("key")) {
+                        key = reader.getElementText();
+                    } else {
+                        NSObject value = readValue(reader);
+                        if (key != null && value != null) dict.put(key, value);
+                        key = null;
+                    }
+                }
+                return dict;
+            case "array":
+                List<NSObject> items = new ArrayList<>();
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    NSObject value = readValue(reader);
+                    if (value != null) items.add(value);
+                }
+                return new NSArray(items.toArray(new NSObject[0]));
+            case "string":
+                return new NSString(reader.getElementText());
+            case "integer":
+                return new NSNumber(Long.parseLong(reader.getElementText().trim()));
+            case "real":
+                return new NSNumber(Double.parseDouble(reader.getElementText().trim()));
+            case "true":
+                reader.getElementText();
+                return new NSNumber(true);
+            case "false":
+                reader.getElementText();
+                return new NSNumber(false);
+            case "date":
+                return new NSDate(reader.getElementText().trim());
+            default:
+                skipElement(reader);
+                return null;
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+
+    private LightPListParser() {
+    }
+
+}
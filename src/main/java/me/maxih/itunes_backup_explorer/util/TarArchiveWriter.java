@@ -0,0 +1,165 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes uncompressed POSIX (pax) TAR archives.
+ * Plain ustar headers are used where possible, pax headers only for long or non-ASCII names and files of 8 GiB or more.
+ * Since the size is part of the header, streamed content is cut off or padded to the announced size.
+ */
+public class TarArchiveWriter implements ArchiveWriter {
+    private static final int BLOCK_SIZE = 512;
+    private static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+    private static final int NAME_LENGTH = 100;
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_DIRECTORY = '5';
+    private static final byte TYPE_PAX_HEADER = 'x';
+
+    private static final int FILE_MODE = 0644;
+    private static final int DIRECTORY_MODE = 0755;
+
+    private final ArchiveOutput out;
+
+    public TarArchiveWriter(File file) throws IOException {
+        this.out = new ArchiveOutput(file);
+    }
+
+    @Override
+    public void writeDirectory(String name, long lastModified) throws IOException {
+        this.writeHeaders(name + "/", lastModified, 0, TYPE_DIRECTORY, DIRECTORY_MODE);
+    }
+
+    @Override
+    public Prepared prepare(byte[] content, int length, boolean compress) {
+        return new Prepared(content, length, length, 0, false);
+    }
+
+    @Override
+    public void writeEntry(String name, long lastModified, Prepared prepared) throws IOException {
+        this.writeHeaders(name, lastModified, prepared.length, TYPE_FILE, FILE_MODE);
+        this.out.write(prepared.data, 0, prepared.length);
+        this.pad(prepared.length);
+    }
+
+    @Override
+    public void writeEntry(String name, long lastModified, long size, InputStream content, boolean compress) throws IOException {
+        long start = this.out.position();
+        this.writeHeaders(name, lastModified, size, TYPE_FILE, FILE_MODE);
+
+        long written = 0;
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while (written < size && (read = content.read(buffer, 0, (int) Math.min(buffer.length, size - written))) != -1) {
+                this.out.write(buffer, 0, read);
+                written += read;
+            }
+
+            if (written < size) {
+                System.out.println("'" + name + "' ended after " + written + " of " + size + " bytes, the rest is filled with zeros");
+                for (long missing = size - written; missing > 0; missing -= buffer.length) {
+                    this.out.writeZeros((int) Math.min(missing, buffer.length));
+                }
+            } else if (content.read() != -1) {
+                System.out.println("'" + name + "' is longer than " + size + " bytes, the rest is cut off");
+            }
+        } catch (IOException | RuntimeException e) {
+            this.out.truncate(start);
+            throw e;
+        }
+
+        this.pad(size);
+    }
+
+    private void writeHeaders(String name, long lastModified, long size, byte type, int mode) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean plainName = nameBytes.length <= NAME_LENGTH && StandardCharsets.US_ASCII.newEncoder().canEncode(name);
+
+        if (!plainName || size > MAX_USTAR_SIZE) {
+            StringBuilder records = new StringBuilder();
+            if (!plainName) records.append(paxRecord("path", name));
+            if (size > MAX_USTAR_SIZE) records.append(paxRecord("size", Long.toString(size)));
+
+            byte[] paxData = records.toString().getBytes(StandardCharsets.UTF_8);
+            this.out.write(header("PaxHeaders/" + BackupPathUtils.getFileName(name), lastModified, paxData.length, TYPE_PAX_HEADER, FILE_MODE));
+            this.out.write(paxData);
+            this.pad(paxData.length);
+        }
+
+        this.out.write(header(name, lastModified, size > MAX_USTAR_SIZE ? 0 : size, type, mode));
+    }
+
+    private static byte[] header(String name, long lastModified, long size, byte type, int mode) {
+        byte[] header = new byte[BLOCK_SIZE];
+
+        // Cut off if it is too long, the full name is in the pax header then
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, NAME_LENGTH));
+
+        putOctal(header, 100, 8, mode);
+        putOctal(header, 108, 8, 0);  // uid
+        putOctal(header, 116, 8, 0);  // gid
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, Math.max(0, lastModified));
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // The checksum is calculated with the checksum field filled with spaces
+        for (int i = 148; i < 156; i++) header[i] = ' ';
+        long checksum = 0;
+        for (byte b : header) checksum += b & 0xFF;
+        putOctal(header, 148, 7, checksum);
+
+        return header;
+    }
+
+    /**
+     * Writes the value as zero-padded octal number, followed by a NUL byte
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        if (octal.length() > digits) octal = octal.substring(octal.length() - digits);
+        for (int i = 0; i < digits; i++) {
+            int index = i - (digits - octal.length());
+            header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+        }
+        header[offset + digits] = 0;
+    }
+
+    /**
+     * A pax record is "length key=value\n", where the length includes its own digits
+     */
+    private static String paxRecord(String key, String value) {
+        int contentLength = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = contentLength + Integer.toString(contentLength).length();
+        if (Integer.toString(length).length() != Integer.toString(contentLength).length()) length++;
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private void pad(long dataLength) throws IOException {
+        int remainder = (int) (dataLength % BLOCK_SIZE);
+        if (remainder > 0) this.out.writeZeros(BLOCK_SIZE - remainder);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        this.out.writeZeros(2 * BLOCK_SIZE);
+
+        int remainder = (int) (this.out.position() % RECORD_SIZE);
+        if (remainder > 0) this.out.writeZeros(RECORD_SIZE - remainder);
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
@@ -0,0 +1,306 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes ZIP archives with ZIP64 support, so entries and archives can be larger than 4 GiB.
+ * Instead of appending data descriptors, the sizes and checksum of streamed entries
+ * are written into their local header afterwards, which is supported by every reader.
+ */
+public class ZipArchiveWriter implements ArchiveWriter {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int VERSION = 45;
+    private static final int VERSION_MADE_BY = (3 << 8) | VERSION;  // Unix, so the external attributes are file modes
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int TIMESTAMP_EXTRA_ID = 0x5455;
+    private static final int TIMESTAMP_EXTRA_LENGTH = 9;
+    // Local headers always carry both sizes as ZIP64 fields, because streamed entries don't know them in advance
+    private static final int LOCAL_EXTRA_LENGTH = 4 + 16 + TIMESTAMP_EXTRA_LENGTH;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+    private static final int FILE_MODE = 0100644;
+    private static final int DIRECTORY_MODE = 040755;
+
+    private final ArchiveOutput out;
+    private final int level;
+    private final List<Entry> entries = new ArrayList<>();
+
+    public ZipArchiveWriter(File file) throws IOException {
+        this(file, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level The {@link Deflater} compression level
+     */
+    public ZipArchiveWriter(File file, int level) throws IOException {
+        this.out = new ArchiveOutput(file);
+        this.level = level;
+    }
+
+    @Override
+    public void writeDirectory(String name, long lastModified) throws IOException {
+        Entry entry = new Entry(name + "/", lastModified, STORED, DIRECTORY_MODE);
+        entry.offset = this.out.position();
+        this.writeLocalHeader(entry);
+        this.entries.add(entry);
+    }
+
+    @Override
+    public Prepared prepare(byte[] content, int length, boolean compress) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+
+        if (compress && length > 0) {
+            Deflater deflater = new Deflater(this.level, true);
+            try {
+                deflater.setInput(content, 0, length);
+                deflater.finish();
+
+                // Only kept if it is smaller than the content
+                byte[] deflated = new byte[length];
+                int deflatedLength = 0;
+                while (!deflater.finished() && deflatedLength < deflated.length) {
+                    deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+                }
+                if (deflater.finished() && deflatedLength < length)
+                    return new Prepared(deflated, deflatedLength, length, crc.getValue(), true);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        return new Prepared(content, length, length, crc.getValue(), false);
+    }
+
+    @Override
+    public void writeEntry(String name, long lastModified, Prepared prepared) throws IOException {
+        Entry entry = new Entry(name, lastModified, prepared.compressed ? DEFLATED : STORED, FILE_MODE);
+        entry.offset = this.out.position();
+        entry.crc = prepared.crc;
+        entry.size = prepared.size;
+        entry.compressedSize = prepared.length;
+
+        this.writeLocalHeader(entry);
+        this.out.write(prepared.data, 0, prepared.length);
+        this.entries.add(entry);
+    }
+
+    @Override
+    public void writeEntry(String name, long lastModified, long size, InputStream content, boolean compress) throws IOException {
+        Entry entry = new Entry(name, lastModified, compress ? DEFLATED : STORED, FILE_MODE);
+        entry.offset = this.out.position();
+        this.writeLocalHeader(entry);
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = compress ? new Deflater(this.level, true) : null;
+        try {
+            byte[] buffer = new byte[65536];
+            byte[] deflated = compress ? new byte[65536] : null;
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                entry.size += read;
+
+                if (deflater == null) {
+                    this.out.write(buffer, 0, read);
+                    entry.compressedSize += read;
+                } else {
+                    deflater.setInput(buffer, 0, read);
+                    while (!deflater.needsInput()) {
+                        entry.compressedSize += this.drain(deflater, deflated);
+                    }
+                }
+            }
+
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    entry.compressedSize += this.drain(deflater, deflated);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            this.out.truncate(entry.offset);
+            throw e;
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+
+        if (entry.size != size)
+            System.out.println("Size of '" + name + "' was expected to be " + size + ", but is " + entry.size);
+
+        entry.crc = crc.getValue();
+        this.out.writeAt(entry.offset + 14, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) entry.crc).flip());
+        this.out.writeAt(entry.offset + 30 + entry.name.length + 4,
+                ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putLong(entry.size).putLong(entry.compressedSize).flip());
+        this.entries.add(entry);
+    }
+
+    private int drain(Deflater deflater, byte[] buffer) throws IOException {
+        int length = deflater.deflate(buffer);
+        this.out.write(buffer, 0, length);
+        return length;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(30 + entry.name.length + LOCAL_EXTRA_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) VERSION)
+                .putShort((short) FLAG_UTF8)
+                .putShort((short) entry.method)
+                .putInt(entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) MAX_32)
+                .putInt((int) MAX_32)
+                .putShort((short) entry.name.length)
+                .putShort((short) LOCAL_EXTRA_LENGTH)
+                .put(entry.name);
+        header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(entry.size).putLong(entry.compressedSize);
+        putTimestamp(header, entry.lastModified);
+        this.out.write(header.array());
+    }
+
+    @Override
+    public void finish() throws IOException {
+        long directoryOffset = this.out.position();
+
+        for (Entry entry : this.entries) {
+            boolean largeSizes = entry.size >= MAX_32 || entry.compressedSize >= MAX_32;
+            boolean largeOffset = entry.offset >= MAX_32;
+            int zip64Length = (largeSizes ? 16 : 0) + (largeOffset ? 8 : 0);
+            int extraLength = (zip64Length > 0 ? 4 + zip64Length : 0) + TIMESTAMP_EXTRA_LENGTH;
+
+            ByteBuffer header = ByteBuffer.allocate(46 + entry.name.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CENTRAL_HEADER_SIGNATURE)
+                    .putShort((short) VERSION_MADE_BY)
+                    .putShort((short) VERSION)
+                    .putShort((short) FLAG_UTF8)
+                    .putShort((short) entry.method)
+                    .putInt(entry.dosTime)
+                    .putInt((int) entry.crc)
+                    .putInt((int) (largeSizes ? MAX_32 : entry.compressedSize))
+                    .putInt((int) (largeSizes ? MAX_32 : entry.size))
+                    .putShort((short) entry.name.length)
+                    .putShort((short) extraLength)
+                    .putShort((short) 0)  // comment length
+                    .putShort((short) 0)  // disk number
+                    .putShort((short) 0)  // internal attributes
+                    .putInt(entry.mode << 16)
+                    .putInt((int) (largeOffset ? MAX_32 : entry.offset))
+                    .put(entry.name);
+
+            if (zip64Length > 0) {
+                header.putShort((short) ZIP64_EXTRA_ID).putShort((short) zip64Length);
+                if (largeSizes) header.putLong(entry.size).putLong(entry.compressedSize);
+                if (largeOffset) header.putLong(entry.offset);
+            }
+            putTimestamp(header, entry.lastModified);
+
+            this.out.write(header.array());
+        }
+
+        long directoryEnd = this.out.position();
+        long directorySize = directoryEnd - directoryOffset;
+
+        if (this.entries.size() >= MAX_16 || directoryOffset >= MAX_32 || directorySize >= MAX_32) {
+            ByteBuffer zip64End = ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN);
+            zip64End.putInt(ZIP64_END_SIGNATURE)
+                    .putLong(44)
+                    .putShort((short) VERSION_MADE_BY)
+                    .putShort((short) VERSION)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(this.entries.size())
+                    .putLong(this.entries.size())
+                    .putLong(directorySize)
+                    .putLong(directoryOffset);
+            zip64End.putInt(ZIP64_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(directoryEnd)
+                    .putInt(1);
+            this.out.write(zip64End.array());
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(this.entries.size(), MAX_16))
+                .putShort((short) Math.min(this.entries.size(), MAX_16))
+                .putInt((int) Math.min(directorySize, MAX_32))
+                .putInt((int) Math.min(directoryOffset, MAX_32))
+                .putShort((short) 0);
+        this.out.write(end.array());
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+    }
+
+    private static void putTimestamp(ByteBuffer header, long lastModified) {
+        header.putShort((short) TIMESTAMP_EXTRA_ID)
+                .putShort((short) (TIMESTAMP_EXTRA_LENGTH - 4))
+                .put((byte) 1)  // only the modification time
+                .putInt((int) Math.max(0, Math.min(lastModified, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * MS-DOS date and time in the local time zone, as stored in the headers
+     */
+    private static int toDosTime(long lastModified) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(lastModified), ZoneId.systemDefault());
+        if (time.getYear() < 1980) return (1 << 21) | (1 << 16);  // 1980-01-01 00:00
+        if (time.getYear() > 2107) time = LocalDateTime.of(2107, 12, 31, 23, 59, 58);
+
+        return (time.getYear() - 1980) << 25
+                | time.getMonthValue() << 21
+                | time.getDayOfMonth() << 16
+                | time.getHour() << 11
+                | time.getMinute() << 5
+                | time.getSecond() >> 1;
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final long lastModified;
+        final int dosTime;
+        final int method;
+        final int mode;
+        long offset;
+        long crc = 0;
+        long size = 0;
+        long compressedSize = 0;
+
+        Entry(String name, long lastModified, int method, int mode) throws IOException {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            if (this.name.length > MAX_16) throw new IOException("Entry name is too long: " + name);
+            this.lastModified = lastModified;
+            this.dosTime = toDosTime(lastModified);
+            this.method = method;
+            this.mode = mode;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExportJournalTest {
+    @TempDir
+    File folder;
+
+    @Test
+    void resumesJournalOfSameBackup() throws IOException, BackupReadException {
+        ITunesBackup backup = TestBackups.create(new File(this.folder, "backup"));
+        File export = this.exportWithJournal(backup);
+
+        try (ExportJournal journal = new ExportJournal(export, backup)) {
+            assertTrue(journal.isComplete("done", new File(export, "done.txt")));
+            assertTrue(journal.wasStarted("started"));
+            assertFalse(journal.wasStarted("abandoned"));
+            // The size has to match, otherwise the file is extracted again
+            assertFalse(journal.isComplete("started", new File(export, "done.txt")));
+        }
+    }
+
+    @Test
+    void discardsJournalOfAnotherBackup() throws IOException, BackupReadException {
+        ITunesBackup backup = TestBackups.create(new File(this.folder, "backup"));
+        File export = this.exportWithJournal(backup);
+
+        // Another backup of the same device has the same directory name
+        ITunesBackup other = TestBackups.create(new File(this.folder, "other/backup"));
+        assertNotResumed(export, other);
+    }
+
+    @Test
+    void discardsJournalOfChangedBackup() throws IOException, BackupReadException {
+        ITunesBackup backup = TestBackups.create(new File(this.folder, "backup"));
+        File export = this.exportWithJournal(backup);
+
+        Files.writeString(backup.manifestDBFile.toPath(), "changed");
+        assertNotResumed(export, backup);
+    }
+
+    @Test
+    void discardsJournalWithOldHeader() throws IOException, BackupReadException {
+        ITunesBackup backup = TestBackups.create(new File(this.folder, "backup"));
+        File export = this.exportWithJournal(backup);
+
+        List<String> lines = Files.readAllLines(new File(export, ExportJournal.FILE_NAME).toPath(), StandardCharsets.UTF_8);
+        lines.set(0, "iTunes Backup Explorer export journal 1 " + backup.directory.getName());
+        Files.write(new File(export, ExportJournal.FILE_NAME).toPath(), lines, StandardCharsets.UTF_8);
+        assertNotResumed(export, backup);
+    }
+
+    private static void assertNotResumed(File export, ITunesBackup backup) throws IOException {
+        try (ExportJournal journal = new ExportJournal(export, backup)) {
+            assertFalse(journal.isComplete("done", new File(export, "done.txt")));
+            assertFalse(journal.wasStarted("done"));
+            assertFalse(journal.wasStarted("started"));
+        }
+
+        // The discarded journal is replaced, not appended to
+        List<String> lines = Files.readAllLines(new File(export, ExportJournal.FILE_NAME).toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+    }
+
+    /**
+     * Writes a journal with a completed, a started and an abandoned file.
+     */
+    private File exportWithJournal(ITunesBackup backup) throws IOException {
+        File export = new File(this.folder, "export");
+        assertTrue(export.mkdir());
+        Files.writeString(new File(export, "done.txt").toPath(), "content");
+
+        try (ExportJournal journal = new ExportJournal(export, backup)) {
+            journal.start("done");
+            journal.complete("done", "content".length());
+            journal.start("started");
+            journal.start("abandoned");
+            journal.abandon("abandoned");
+        }
+        return export;
+    }
+}
@@ -0,0 +1,101 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class KeyBagTest {
+    private static final int BLOCK_SIZE = 16;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final byte[] KEY = new byte[32];
+
+    static {
+        new Random(1).nextBytes(KEY);
+    }
+
+    @TempDir
+    File folder;
+
+    @Test
+    void removesEveryPaddingLength() throws Exception {
+        // Padding of 16 down to 1 byte
+        for (int length = 2 * BLOCK_SIZE; length < 3 * BLOCK_SIZE; length++) {
+            this.checkDecryption(plaintext(length), 2 * BLOCK_SIZE);
+        }
+        // Only the padding block
+        this.checkDecryption(new byte[0], BLOCK_SIZE);
+    }
+
+    @Test
+    void keepsLastBlockAcrossChunks() throws Exception {
+        // The last block is held back until the next chunk is decrypted, so the padding can be removed
+        for (int length : new int[]{CHUNK_SIZE - BLOCK_SIZE, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 2 * CHUNK_SIZE + 5}) {
+            this.checkDecryption(plaintext(length), 64 << 10);
+        }
+    }
+
+    @Test
+    void decryptsSegmentsOfUnevenSize() throws Exception {
+        // The last segment is shorter than the others, or only holds the padding block
+        this.checkDecryption(plaintext(1000), 256);
+        this.checkDecryption(plaintext(1024), 256);
+        this.checkDecryption(plaintext(1023), 1024);
+    }
+
+    @Test
+    void keepsContentWithoutValidPadding() throws Exception {
+        byte[] content = plaintext(3 * BLOCK_SIZE);
+        content[content.length - 1] = 2;
+        content[content.length - 2] = 3;
+        File source = this.encrypt(content, "AES/CBC/NoPadding");
+
+        this.checkResult(source, content, KeyBag.decryptUnpadded(noPaddingCipher(), source, this.destination()));
+        this.checkResult(source, content, KeyBag.decryptSegments(KEY, source, this.destination(), BLOCK_SIZE));
+    }
+
+    private void checkDecryption(byte[] content, int segmentSize) throws Exception {
+        File source = this.encrypt(content, "AES/CBC/PKCS5Padding");
+
+        this.checkResult(source, content, KeyBag.decryptUnpadded(noPaddingCipher(), source, this.destination()));
+        this.checkResult(source, content, KeyBag.decryptSegments(KEY, source, this.destination(), segmentSize));
+    }
+
+    private void checkResult(File source, byte[] content, long size) throws Exception {
+        byte[] decrypted = Files.readAllBytes(this.destination().toPath());
+        assertEquals((long) content.length, size, "Size for " + source.length() + " encrypted bytes");
+        assertArrayEquals(content, decrypted);
+    }
+
+    private File encrypt(byte[] content, String cipherMode) throws Exception {
+        Cipher cipher = Cipher.getInstance(cipherMode);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(new byte[BLOCK_SIZE]));
+        File source = new File(this.folder, "encrypted");
+        Files.write(source.toPath(), cipher.doFinal(content));
+        return source;
+    }
+
+    private File destination() {
+        return new File(this.folder, "decrypted");
+    }
+
+    private static Cipher noPaddingCipher() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(new byte[BLOCK_SIZE]));
+        return cipher;
+    }
+
+    private static byte[] plaintext(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+}
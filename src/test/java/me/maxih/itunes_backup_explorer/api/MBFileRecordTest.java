@@ -0,0 +1,133 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import com.dd.plist.NSData;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static me.maxih.itunes_backup_explorer.api.TestBackups.archive;
+import static me.maxih.itunes_backup_explorer.api.TestBackups.uid;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MBFileRecordTest {
+    private static final int FILE = 1;
+    private static final int SYMBOLIC_LINK = 4;
+
+    @TempDir
+    File folder;
+
+    @Test
+    void decodesFileProperties() throws IOException {
+        byte[] wrappedKey = new byte[44];
+        for (int i = 0; i < wrappedKey.length; i++) wrappedKey[i] = (byte) i;
+        byte[] digest = new byte[20];
+        Arrays.fill(digest, (byte) 0xAB);
+
+        NSDictionary keyObject = new NSDictionary();
+        keyObject.put("NS.data", new NSData(wrappedKey));
+
+        NSDictionary properties = new NSDictionary();
+        // Needs an 8 byte integer
+        properties.put("Size", 5_000_000_000L);
+        properties.put("ProtectionClass", 3);
+        properties.put("LastModified", 1_600_000_000);
+        properties.put("EncryptionKey", uid(2));
+        properties.put("Digest", uid(3));
+
+        MBFileRecord record = MBFileRecord.parse(archive(properties, keyObject, new NSData(digest)));
+        assertNotNull(record);
+        assertEquals(5_000_000_000L, record.size);
+        assertEquals(3, record.protectionClass);
+        assertEquals(1_600_000_000L, record.lastModified);
+        // The protection class in the first four bytes is not part of the key
+        assertArrayEquals(Arrays.copyOfRange(wrappedKey, 4, 44), record.encryptionKey);
+        assertArrayEquals(digest, record.digest);
+        assertNull(record.target);
+    }
+
+    @Test
+    void leavesMissingPropertiesNull() throws IOException {
+        NSDictionary properties = new NSDictionary();
+        properties.put("Size", 12);
+        properties.put("ProtectionClass", 4);
+
+        MBFileRecord record = MBFileRecord.parse(archive(properties));
+        assertNotNull(record);
+        assertEquals(12L, record.size);
+        assertNull(record.lastModified);
+        assertNull(record.encryptionKey);
+        assertNull(record.digest);
+    }
+
+    @Test
+    void decodesSymbolicLinkTargets() throws IOException {
+        for (String target : new String[]{"../Library/Preferences", "Bilder/\u00dc.jpg"}) {
+            NSDictionary properties = new NSDictionary();
+            properties.put("Target", uid(2));
+
+            // Non-ASCII strings are stored as UTF-16
+            MBFileRecord record = MBFileRecord.parse(archive(properties, new NSString(target)));
+            assertNotNull(record);
+            assertEquals(target, record.target);
+        }
+    }
+
+    @Test
+    void rejectsOtherData() throws IOException {
+        NSDictionary properties = new NSDictionary();
+        properties.put("Size", 12);
+        byte[] valid = archive(properties);
+
+        assertNull(MBFileRecord.parse(null));
+        assertNull(MBFileRecord.parse(new byte[0]));
+        assertNull(MBFileRecord.parse("<?xml version=\"1.0\"?><plist><dict/></plist>".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(MBFileRecord.parse(Arrays.copyOf(valid, valid.length - 10)));
+
+        // Integers are read, but anything else is left to the full parser
+        properties.put("Size", 12.5);
+        assertNull(MBFileRecord.parse(archive(properties)));
+    }
+
+    @Test
+    void backupFileFallsBackToFullParser() throws IOException, BackupReadException {
+        ITunesBackup backup = TestBackups.create(this.folder);
+
+        NSDictionary properties = new NSDictionary();
+        properties.put("Size", 2048);
+        properties.put("ProtectionClass", 3);
+        // A real number, which only the full parser accepts
+        properties.put("LastModified", 1_600_000_000.0);
+        byte[] data = archive(properties);
+        assertNull(MBFileRecord.parse(data));
+
+        BackupFile file = new BackupFile(backup, "0123456789abcdef0123456789abcdef01234567", "HomeDomain", "Library/file", FILE, data, false);
+        assertEquals(2048L, file.getSize());
+        assertEquals(1_600_000_000L, file.getLastModified());
+        assertFalse(file.isEncrypted());
+    }
+
+    @Test
+    void backupFileReadsSymbolicLinkFromRecord() throws IOException, BackupReadException {
+        ITunesBackup backup = TestBackups.create(this.folder);
+
+        NSDictionary properties = new NSDictionary();
+        properties.put("Target", uid(2));
+        properties.put("LastModified", 1_600_000_000);
+        byte[] data = archive(properties, new NSString("target"));
+        assertNotNull(MBFileRecord.parse(data));
+
+        BackupFile link = new BackupFile(backup, "0123456789abcdef0123456789abcdef01234567", "HomeDomain", "Library/link", SYMBOLIC_LINK, data, false);
+        assertEquals("target", link.getSymlinkTarget());
+        assertEquals(1_600_000_000L, link.getLastModified());
+    }
+}
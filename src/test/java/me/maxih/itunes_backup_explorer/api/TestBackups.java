@@ -0,0 +1,75 @@
+package me.maxih.itunes_backup_explorer.api;
+
+import com.dd.plist.BinaryPropertyListWriter;
+import com.dd.plist.NSArray;
+import com.dd.plist.NSDate;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSObject;
+import com.dd.plist.NSString;
+import com.dd.plist.UID;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Builds the pieces of a backup that tests need, without a device.
+ */
+final class TestBackups {
+    private TestBackups() {
+    }
+
+    /**
+     * Creates an unencrypted backup with an empty Manifest.db, which is enough as long as the database isn't queried.
+     */
+    static ITunesBackup create(File folder) throws IOException, BackupReadException {
+        NSDictionary lockdown = new NSDictionary();
+        lockdown.put("ProductVersion", "17.0");
+        lockdown.put("ProductType", "iPhone15,2");
+        lockdown.put("BuildVersion", "21A329");
+        lockdown.put("UniqueDeviceID", "00008120-0000000000000000");
+        lockdown.put("SerialNumber", "TEST");
+        lockdown.put("DeviceName", "Test Phone");
+
+        NSDictionary manifest = new NSDictionary();
+        manifest.put("Lockdown", lockdown);
+        manifest.put("IsEncrypted", false);
+        manifest.put("Version", "10.0");
+        manifest.put("Date", new NSDate(new Date()));
+        manifest.put("WasPasscodeSet", false);
+        manifest.put("Applications", new NSDictionary());
+
+        if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create " + folder);
+        BinaryPropertyListWriter.write(manifest, new File(folder, "Manifest.plist"));
+        if (!new File(folder, "Manifest.db").createNewFile()) throw new IOException("Manifest.db exists already");
+        return new ITunesBackup(folder);
+    }
+
+    /**
+     * Archives the properties the way NSKeyedArchiver stores an MBFile in the <code>file</code> column of Manifest.db.
+     * Objects which are referenced by UID are appended to the object list in the given order.
+     *
+     * @param properties   The properties of the MBFile, the extra objects are referenced as <code>uid(2)</code> and up
+     * @param extraObjects Objects referenced by the properties
+     */
+    static byte[] archive(NSDictionary properties, NSObject... extraObjects) throws IOException {
+        NSObject[] objects = new NSObject[extraObjects.length + 2];
+        objects[0] = new NSString("$null");
+        objects[1] = properties;
+        System.arraycopy(extraObjects, 0, objects, 2, extraObjects.length);
+
+        NSDictionary top = new NSDictionary();
+        top.put("root", uid(1));
+
+        NSDictionary archive = new NSDictionary();
+        archive.put("$version", 100000);
+        archive.put("$archiver", "NSKeyedArchiver");
+        archive.put("$top", top);
+        archive.put("$objects", new NSArray(objects));
+        return BinaryPropertyListWriter.writeToArray(archive);
+    }
+
+    static UID uid(int index) {
+        return new UID("" + index, new byte[]{(byte) index});
+    }
+}
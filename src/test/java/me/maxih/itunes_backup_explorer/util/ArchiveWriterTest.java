@@ -0,0 +1,155 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ArchiveWriterTest {
+    private static final int SMALL_ENTRIES = 5;
+
+    @TempDir
+    File folder;
+
+    @Test
+    void zipKeepsBufferedEntriesWhenStreamFails() throws IOException {
+        this.checkZip(true, 0);
+    }
+
+    @Test
+    void zipRemovesFlushedPartOfFailedEntry() throws IOException {
+        this.checkZip(false, 200_000);
+    }
+
+    private void checkZip(boolean compress, int bytesBeforeFailure) throws IOException {
+        File file = new File(this.folder, "test.zip");
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(file)) {
+            writeEntriesAroundFailure(writer, compress, bytesBeforeFailure);
+        }
+
+        try (ZipFile zip = new ZipFile(file)) {
+            List<String> names = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(zip.entries())) names.add(entry.getName());
+            assertEquals(expectedNames(), names);
+
+            for (int i = 0; i < SMALL_ENTRIES; i++) {
+                try (InputStream in = zip.getInputStream(zip.getEntry("dir/small" + i + ".txt"))) {
+                    assertArrayEquals(content(i), in.readAllBytes());
+                }
+            }
+            try (InputStream in = zip.getInputStream(zip.getEntry("dir/after.txt"))) {
+                assertArrayEquals(content(SMALL_ENTRIES), in.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void tarKeepsBufferedEntriesWhenStreamFails() throws IOException {
+        this.checkTar(0);
+    }
+
+    @Test
+    void tarRemovesFlushedPartOfFailedEntry() throws IOException {
+        this.checkTar(200_000);
+    }
+
+    private void checkTar(int bytesBeforeFailure) throws IOException {
+        File file = new File(this.folder, "test.tar");
+        try (TarArchiveWriter writer = new TarArchiveWriter(file)) {
+            writeEntriesAroundFailure(writer, false, bytesBeforeFailure);
+        }
+
+        byte[] tar = Files.readAllBytes(file.toPath());
+        List<String> names = new ArrayList<>();
+        int offset = 0;
+        while (offset + 512 <= tar.length && tar[offset] != 0) {
+            int nameEnd = offset;
+            while (nameEnd < offset + 100 && tar[nameEnd] != 0) nameEnd++;
+            String name = new String(tar, offset, nameEnd - offset, StandardCharsets.UTF_8);
+            int size = Integer.parseInt(new String(tar, offset + 124, 11, StandardCharsets.US_ASCII), 8);
+            names.add(name);
+
+            int index = name.equals("dir/after.txt") ? SMALL_ENTRIES : name.startsWith("dir/small") ? name.charAt(9) - '0' : -1;
+            if (index >= 0) {
+                byte[] data = new byte[size];
+                System.arraycopy(tar, offset + 512, data, 0, size);
+                assertArrayEquals(content(index), data);
+            }
+
+            offset += 512 + (size + 511) / 512 * 512;
+        }
+        assertEquals(expectedNames(), names);
+    }
+
+    /**
+     * Small entries stay in the output buffer, so the failing entry is cut off while they are not written yet,
+     * unless the failing entry has written enough to flush them before it fails.
+     */
+    private static void writeEntriesAroundFailure(ArchiveWriter writer, boolean compress, int bytesBeforeFailure) throws IOException {
+        writer.writeDirectory("dir", 0);
+        for (int i = 0; i < SMALL_ENTRIES; i++) {
+            byte[] content = content(i);
+            writer.writeEntry("dir/small" + i + ".txt", 0, writer.prepare(content, content.length, compress));
+        }
+
+        assertThrows(IOException.class, () -> writer.writeEntry("dir/failed.txt", 0, bytesBeforeFailure + 1000, new FailingInputStream(bytesBeforeFailure), compress));
+
+        byte[] after = content(SMALL_ENTRIES);
+        writer.writeEntry("dir/after.txt", 0, after.length, new ByteArrayInputStream(after), compress);
+        writer.finish();
+    }
+
+    private static List<String> expectedNames() {
+        List<String> names = new ArrayList<>();
+        names.add("dir/");
+        for (int i = 0; i < SMALL_ENTRIES; i++) names.add("dir/small" + i + ".txt");
+        names.add("dir/after.txt");
+        return names;
+    }
+
+    private static byte[] content(int index) {
+        return ("Content of entry " + index + "\n").repeat(index + 1).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the given number of bytes, then fails
+     */
+    private static class FailingInputStream extends InputStream {
+        private int remaining;
+
+        FailingInputStream(int bytesBeforeFailure) {
+            this.remaining = bytesBeforeFailure;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining == 0) throw new IOException("Read failed");
+            this.remaining--;
+            return 'x';
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining == 0) throw new IOException("Read failed");
+            int count = Math.min(len, Math.min(this.remaining, 4096));
+            Arrays.fill(b, off, off + count, (byte) 'x');
+            this.remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+class BackupFilePaddingFixerTest {
+    private static final int BLOCK_SIZE = 16;
+
+    @TempDir
+    File folder;
+
+    @Test
+    void removesPaddingOfOneToSixteenBytes() throws IOException {
+        for (int padding = 1; padding <= BLOCK_SIZE; padding++) {
+            byte[] content = content(3 * BLOCK_SIZE - padding);
+            this.checkFix(padded(content, padding, 0), content);
+            // Trailing zeros from a wrong size in the database
+            this.checkFix(padded(content, padding, 2 * BLOCK_SIZE), content);
+        }
+    }
+
+    @Test
+    void keepsFilesWithPaddingOfMoreThanSixteen() throws IOException {
+        for (int padding : new int[]{BLOCK_SIZE + 1, 32, 255}) {
+            // Otherwise looks like valid padding, as the file ends at a block boundary
+            byte[] file = padded(content(16 * BLOCK_SIZE - padding), padding, 0);
+            this.checkFix(file, file);
+        }
+    }
+
+    @Test
+    void keepsFilesWithoutPadding() throws IOException {
+        // Only zeros, so there is no padding number at all
+        byte[] zeros = new byte[4 * BLOCK_SIZE];
+        this.checkFix(zeros, zeros);
+
+        // The last non-zero byte is not repeated
+        byte[] content = content(2 * BLOCK_SIZE);
+        content[content.length - 1] = 3;
+        content[content.length - 2] = 1;
+        this.checkFix(content, content);
+    }
+
+    private void checkFix(byte[] file, byte[] expected) throws IOException {
+        File path = new File(this.folder, "file");
+        Files.write(path.toPath(), file);
+        BackupFilePaddingFixer.tryFixPadding(path);
+        assertArrayEquals(expected, Files.readAllBytes(path.toPath()));
+    }
+
+    private static byte[] padded(byte[] content, int padding, int trailingZeros) {
+        byte[] file = Arrays.copyOf(content, content.length + padding + trailingZeros);
+        Arrays.fill(file, content.length, content.length + padding, (byte) padding);
+        return file;
+    }
+
+    /**
+     * Content which never ends with a byte that could be taken for padding
+     */
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) content[i] = (byte) ('a' + i % 26);
+        return content;
+    }
+}
@@ -0,0 +1,59 @@
+package me.maxih.itunes_backup_explorer.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupPathUtilsTest {
+    @Test
+    void starStaysWithinOneSegment() {
+        Pattern pattern = BackupPathUtils.globToPattern("Library/*.db");
+        assertTrue(matches(pattern, "Library/sms.db"));
+        assertTrue(matches(pattern, "Library/.db"));
+        assertFalse(matches(pattern, "Library/SMS/sms.db"));
+        assertFalse(matches(pattern, "Library/sms.db-wal"));
+    }
+
+    @Test
+    void doubleStarCrossesSegments() {
+        Pattern pattern = BackupPathUtils.globToPattern("Media/**.jpg");
+        assertTrue(matches(pattern, "Media/IMG_0001.jpg"));
+        assertTrue(matches(pattern, "Media/DCIM/100APPLE/IMG_0001.jpg"));
+        assertFalse(matches(pattern, "Library/Media/IMG_0001.jpg"));
+
+        assertTrue(matches(BackupPathUtils.globToPattern("**"), "Library/Preferences/com.apple.a.plist"));
+    }
+
+    @Test
+    void questionMarkMatchesOneCharacter() {
+        Pattern pattern = BackupPathUtils.globToPattern("IMG_000?.HEIC");
+        assertTrue(matches(pattern, "IMG_0001.HEIC"));
+        assertFalse(matches(pattern, "IMG_00010.HEIC"));
+        assertFalse(matches(pattern, "IMG_000.HEIC"));
+        assertFalse(matches(BackupPathUtils.globToPattern("a?b"), "a/b"));
+    }
+
+    @Test
+    void otherCharactersAreLiteral() {
+        assertTrue(matches(BackupPathUtils.globToPattern("a.b+(c)[d]{1}$^|"), "a.b+(c)[d]{1}$^|"));
+        assertFalse(matches(BackupPathUtils.globToPattern("a.b"), "axb"));
+    }
+
+    @Test
+    void backslashEscapesWildcards() {
+        Pattern pattern = BackupPathUtils.globToPattern("What\\?\\*");
+        assertTrue(matches(pattern, "What?*"));
+        assertFalse(matches(pattern, "Whatx*"));
+        assertFalse(matches(pattern, "What?xyz"));
+
+        // A backslash at the end has nothing to escape and matches itself
+        assertTrue(matches(BackupPathUtils.globToPattern("end\\"), "end\\"));
+    }
+
+    private static boolean matches(Pattern pattern, String path) {
+        return pattern.matcher(path).matches();
+    }
+}